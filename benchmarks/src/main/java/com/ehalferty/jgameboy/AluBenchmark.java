@@ -0,0 +1,84 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ALU helpers and register pair packing in isolation
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AluBenchmark {
+	
+	private CPU cpu;
+	
+	// Not final, so the JIT cannot constant-fold the operands
+	public int a = 0x3C;
+	public int b = 0x0F;
+	public int pair = 0xC0DE;
+	
+	@Setup
+	public void setup() {
+		cpu = new CPU(BenchRoms.loop());
+	}
+	
+	@Benchmark
+	public int add8() { return cpu.add8(a, b); }
+	
+	@Benchmark
+	public int adc8() { return cpu.adc8(a, b); }
+	
+	@Benchmark
+	public int sub8() { return cpu.sub8(a, b); }
+	
+	@Benchmark
+	public int rl8() { return cpu.rl8(a); }
+	
+	@Benchmark
+	public int inc8() { return cpu.inc8(a); }
+	
+	@Benchmark
+	public int add16() { return cpu.add16(pair, b); }
+	
+	@Benchmark
+	public int getHL() { return cpu.getHL(); }
+	
+	@Benchmark
+	public int setGetHL() {
+		cpu.setHL(pair);
+		return cpu.getHL();
+	}
+	
+	@Benchmark
+	public int getAF() { return cpu.getAF(); }
+}
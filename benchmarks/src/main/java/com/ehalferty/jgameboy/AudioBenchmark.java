@@ -0,0 +1,80 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One frame with all four sound channels playing and the CPU idling in a
+// spin loop, so the time is almost all sample synthesis. The ring is
+// drained after each frame, as an output thread would.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioBenchmark {
+	
+	@Param({"true", "false"})
+	public boolean sound;
+	
+	private Emulator emu;
+	private AudioRing ring;
+	private final short [] drain = new short[4096];
+	
+	@Setup
+	public void setup() {
+		emu = new Emulator();
+		emu.init(BenchRoms.loop(
+				0x3E, 0x80, 0xE0, 0x26, // sound on
+				0x3E, 0x77, 0xE0, 0x24, // full volume
+				0x3E, 0xFF, 0xE0, 0x25, // every channel to both sides
+				0x3E, 0x80, 0xE0, 0x11, 0x3E, 0xF0, 0xE0, 0x12, 0x3E, 0x87, 0xE0, 0x14, // square 1
+				0x3E, 0x40, 0xE0, 0x16, 0x3E, 0xF0, 0xE0, 0x17, 0x3E, 0x86, 0xE0, 0x19, // square 2
+				0x3E, 0x80, 0xE0, 0x1A, 0x3E, 0x20, 0xE0, 0x1C, 0x3E, 0x85, 0xE0, 0x1E, // wave
+				0x3E, 0xF0, 0xE0, 0x21, 0x3E, 0x21, 0xE0, 0x22, 0x3E, 0x80, 0xE0, 0x23, // noise
+				0x18, 0xFE));
+		if (sound) {
+			ring = new AudioRing(1 << 14);
+			emu.getAPU().setOutput(ring, APU.DEFAULT_SAMPLE_RATE, false);
+		}
+		emu.runCycles(1000);
+	}
+	
+	@Benchmark
+	public long frame() {
+		long n = emu.runCycles(Emulator.CYCLES_PER_FRAME);
+		if (ring != null) {
+			while (ring.read(drain, 0, drain.length) > 0) { }
+		}
+		return n;
+	}
+}
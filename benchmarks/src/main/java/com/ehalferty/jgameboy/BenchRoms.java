@@ -0,0 +1,61 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// ROM images shared by the benchmarks
+final class BenchRoms {
+	
+	private BenchRoms() { }
+	
+	// Builds a 32 KB cartridge whose entry point runs the given code in an
+	// endless loop (the code is followed by JP 0x0100).
+	static byte [] loop(int... code) {
+		byte [] rom = new byte[0x8000];
+		int addr = 0x100;
+		for (int b : code) rom[addr++] = (byte) b;
+		rom[addr++] = (byte) 0xC3;
+		rom[addr++] = 0x00;
+		rom[addr] = 0x01;
+		return rom;
+	}
+	
+	// demo.gb, looked up via -Djgameboy.rom or relative to the working directory
+	static byte [] demo() {
+		String configured = System.getProperty("jgameboy.rom");
+		Path [] candidates = (configured != null)
+				? new Path[] { Paths.get(configured) }
+				: new Path[] { Paths.get("demo.gb"), Paths.get("../demo.gb") };
+		for (Path p : candidates) {
+			if (Files.isRegularFile(p)) {
+				try {
+					return Files.readAllBytes(p);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+		throw new IllegalStateException("demo.gb not found; pass -Djgameboy.rom=<path>");
+	}
+}
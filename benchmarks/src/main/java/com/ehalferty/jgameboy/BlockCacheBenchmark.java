@@ -0,0 +1,63 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One frame of a straight-line ROM loop, run one instruction at a time,
+// through the block cache, or compiled by the JIT
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockCacheBenchmark {
+	
+	@Param({"step", "blocks", "jit"})
+	public String mode;
+	
+	private Emulator emu;
+	
+	@Setup
+	public void setup() {
+		emu = new Emulator();
+		emu.init(BenchRoms.loop(0x04, 0x0C, 0x80, 0x91, 0xA8, 0x78, 0x47, 0x23, 0x2B,
+				0x3E, 0x12, 0xC6, 0x01, 0x06, 0x34, 0x0E, 0x56, 0xCB, 0x11, 0xCB, 0x47));
+		emu.setBlockCacheEnabled(!mode.equals("step"));
+		emu.setJitEnabled(mode.equals("jit"));
+	}
+	
+	@Benchmark
+	public long frame() {
+		return emu.runCycles(Emulator.CYCLES_PER_FRAME);
+	}
+}
@@ -0,0 +1,78 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of fetching, decoding and executing one instruction in CPU.step()
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	
+	static final int STEPS = 1000;
+	
+	// mixed: loads, 8/16-bit ALU and immediates from all over the opcode map
+	// late:  immediates from the 0xE0-0xFF rows
+	// cb:    CB-prefixed rotates and bit tests
+	@Param({"mixed", "late", "cb"})
+	public String program;
+	
+	private CPU cpu;
+	
+	@Setup
+	public void setup() {
+		byte [] rom;
+		if (program.equals("late")) {
+			rom = BenchRoms.loop(0xFE, 0x10, 0xE6, 0x0F, 0xEE, 0x55, 0xF6, 0x01, 0xCE, 0x02, 0xDE, 0x01);
+		} else if (program.equals("cb")) {
+			rom = BenchRoms.loop(0xCB, 0x11, 0xCB, 0x19, 0xCB, 0x47, 0xCB, 0x7F, 0xCB, 0xC0, 0xCB, 0x80);
+		} else {
+			rom = BenchRoms.loop(0x04, 0x0C, 0x80, 0x91, 0xA8, 0x78, 0x47, 0x23, 0x2B,
+					0xFE, 0x10, 0xE6, 0x0F, 0xEE, 0x55, 0x00);
+		}
+		cpu = new CPU(rom);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(STEPS)
+	public int step() {
+		int cycles = 0;
+		for (int i = 0; i < STEPS; i++) {
+			cycles += cpu.step();
+		}
+		return cycles;
+	}
+}
@@ -0,0 +1,65 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Frames going from the emulation thread to the render thread through the
+// triple buffer, with one thread on each side. The producer copies a frame
+// in and publishes it; the consumer takes whatever is newest. Neither side
+// should slow the other down.
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameHandoffBenchmark {
+	
+	private final TripleBuffer frames = new TripleBuffer(PPU.WIDTH * PPU.HEIGHT);
+	private final byte [] frame = new byte[PPU.WIDTH * PPU.HEIGHT];
+	
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public boolean publish() {
+		System.arraycopy(frame, 0, frames.getBackBuffer(), 0, frame.length);
+		return frames.publish();
+	}
+	
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public int acquire() {
+		byte [] f = frames.acquire();
+		return f == null ? 0 : f[0];
+	}
+}
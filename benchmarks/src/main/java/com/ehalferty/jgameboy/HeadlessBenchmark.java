@@ -0,0 +1,72 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole-emulator throughput: demo.gb from power-on for a fixed number of cycles
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeadlessBenchmark {
+	
+	// Roughly one and ten frames
+	@Param({"70224", "702240"})
+	public long cycles;
+	
+	// With and without skipping HALT time and spin loops
+	@Param({"true", "false"})
+	public boolean idleSkip;
+	
+	private byte [] rom;
+	private Emulator emu;
+	
+	@Setup(Level.Trial)
+	public void loadRom() {
+		rom = BenchRoms.demo();
+		emu = new Emulator();
+	}
+	
+	@Setup(Level.Invocation)
+	public void reset() {
+		emu.init(rom);
+		emu.setIdleSkipEnabled(idleSkip);
+	}
+	
+	@Benchmark
+	public long runCycles() {
+		return emu.runCycles(cycles);
+	}
+}
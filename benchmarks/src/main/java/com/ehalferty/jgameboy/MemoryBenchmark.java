@@ -0,0 +1,86 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// readByte/writeByte across ROM, work RAM and the I/O page
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryBenchmark {
+	
+	static final int ACCESSES = 4096;
+	
+	private CPU cpu;
+	
+	@Setup
+	public void setup() {
+		cpu = new CPU(BenchRoms.demo());
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ACCESSES)
+	public int readRom() {
+		int sum = 0;
+		for (int i = 0; i < ACCESSES; i++) {
+			sum += cpu.readByte(i & 0x7FFF);
+		}
+		return sum;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ACCESSES)
+	public int readWriteWorkRam() {
+		int sum = 0;
+		for (int i = 0; i < ACCESSES; i++) {
+			int addr = 0xC000 | (i & 0x1FFF);
+			cpu.writeByte(addr, i);
+			sum += cpu.readByte(addr);
+		}
+		return sum;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ACCESSES)
+	public int readWriteIo() {
+		int sum = 0;
+		for (int i = 0; i < ACCESSES; i++) {
+			int addr = 0xFF80 | (i & 0x7F);
+			cpu.writeByte(addr, i);
+			sum += cpu.readByte(addr);
+		}
+		return sum;
+	}
+}
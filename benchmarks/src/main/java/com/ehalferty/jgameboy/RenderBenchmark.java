@@ -0,0 +1,86 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Presenting a frame: palette-mapping the PPU output into the image and
+// drawing it scaled into an offscreen image the size of the window
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+	
+	private final FrameRenderer renderer = new FrameRenderer();
+	private final byte [][] frames = new byte[2][PPU.WIDTH * PPU.HEIGHT];
+	private BufferedImage target;
+	private Graphics2D g;
+	private int n = 0;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		int scale = EmulatorWindow.SCALE;
+		target = new BufferedImage(scale * 160 + 50, scale * 144 + 50, BufferedImage.TYPE_INT_RGB);
+		g = target.createGraphics();
+		
+		// Two different checkerboards of all four shades
+		for (int i = 0; i < frames[0].length; i++) {
+			frames[0][i] = (byte) (i & 3);
+			frames[1][i] = (byte) ((i + 1) & 3);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		g.dispose();
+	}
+	
+	// Every frame differs from the last, so it is always converted and drawn
+	@Benchmark
+	public BufferedImage drawFrame() {
+		if (renderer.update(frames[n++ & 1])) {
+			renderer.draw(g, 30, 30, EmulatorWindow.SCALE);
+		}
+		return target;
+	}
+	
+	// The same frame again, which the renderer detects and skips
+	@Benchmark
+	public boolean unchangedFrame() {
+		return renderer.update(frames[0]);
+	}
+}
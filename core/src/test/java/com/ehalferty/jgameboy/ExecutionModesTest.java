@@ -0,0 +1,71 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+// Single-stepping, the block cache and the JIT must leave the emulator in
+// exactly the same state.
+class ExecutionModesTest {
+	
+	private static final int FRAMES = 300;
+	
+	// A hot block in high RAM that runs off the end of memory: IE is set to
+	// 0 so it runs as a NOP, with another NOP at 0xFFFE. The block ends at
+	// 0x10000, which has to wrap to 0x0000, where B is counted up before
+	// jumping back.
+	private static byte [] wrapRom() {
+		byte [] rom = new byte[0x8000];
+		int [] wrapped = { 0x04, 0xC3, 0x55, 0x01 };              // INC B; JP 0x0155
+		int [] entry = { 0xF3, 0xC3, 0x50, 0x01 };                // DI; JP 0x0150
+		int [] setup = { 0xAF, 0xE0, 0xFF, 0xE0, 0xFE,            // XOR A; LDH (IE),A; LDH (0xFE),A
+				0xC3, 0xFE, 0xFF };                                // JP 0xFFFE
+		for (int i = 0; i < wrapped.length; i++) rom[i] = (byte) wrapped[i];
+		for (int i = 0; i < entry.length; i++) rom[0x100 + i] = (byte) entry[i];
+		for (int i = 0; i < setup.length; i++) rom[0x150 + i] = (byte) setup[i];
+		return rom;
+	}
+	
+	@Test
+	void blockRunningPastFfffWrapsInEveryMode() {
+		Emulator step = new Emulator();
+		step.init(wrapRom());
+		step.setBlockCacheEnabled(false);
+		Emulator blocks = new Emulator();
+		blocks.init(wrapRom());
+		Emulator jit = new Emulator();
+		jit.init(wrapRom());
+		jit.setJitEnabled(true);
+		
+		for (int f = 0; f < FRAMES; f++) {
+			step.runFrames(1);
+			blocks.runFrames(1);
+			jit.runFrames(1);
+			byte [] expected = step.snapshot().toByteArray();
+			assertArrayEquals(expected, blocks.snapshot().toByteArray(), "block cache, frame " + f);
+			assertArrayEquals(expected, jit.snapshot().toByteArray(), "JIT, frame " + f);
+		}
+		assertTrue(jit.getJit().getBlocksCompiled() > 0, "the JIT compiled nothing");
+		assertEquals(FRAMES, jit.getFrame());
+	}
+}
@@ -0,0 +1,576 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.nio.ByteBuffer;
+
+// The four sound channels: two square waves (the first with a frequency
+// sweep), a programmable wave and noise.
+//
+// Nothing here runs per clock cycle. A register write first synthesizes
+// everything up to the current cycle with the old settings, then applies
+// the new one to the channel; the 512 Hz frame sequencer (length, sweep and
+// envelope) is a scheduler event that does the same before each step. Each
+// batch of interleaved stereo samples is built in a short [] and handed to
+// the AudioRing in one go. With no ring attached, samples aren't produced
+// at all and only the state games can see (lengths, sweep, NR52) is kept.
+public class APU implements IoHandler {
+	
+	// Registers
+	public static final int NR10 = 0xFF10;
+	public static final int NR11 = 0xFF11;
+	public static final int NR12 = 0xFF12;
+	public static final int NR13 = 0xFF13;
+	public static final int NR14 = 0xFF14;
+	public static final int NR21 = 0xFF16;
+	public static final int NR22 = 0xFF17;
+	public static final int NR23 = 0xFF18;
+	public static final int NR24 = 0xFF19;
+	public static final int NR30 = 0xFF1A;
+	public static final int NR31 = 0xFF1B;
+	public static final int NR32 = 0xFF1C;
+	public static final int NR33 = 0xFF1D;
+	public static final int NR34 = 0xFF1E;
+	public static final int NR41 = 0xFF20;
+	public static final int NR42 = 0xFF21;
+	public static final int NR43 = 0xFF22;
+	public static final int NR44 = 0xFF23;
+	public static final int NR50 = 0xFF24;
+	public static final int NR51 = 0xFF25;
+	public static final int NR52 = 0xFF26;
+	public static final int WAVE_RAM = 0xFF30;
+	
+	public static final int DEFAULT_SAMPLE_RATE = 48000;
+	
+	// The frame sequencer steps at 512 Hz
+	private static final int SEQUENCER_PERIOD = Scheduler.CLOCK_HZ / 512;
+	
+	// Dynamic rate control: the output rate is nudged by up to this much to
+	// hold the ring half full, so a real-time consumer neither starves nor
+	// falls behind when the host's clock and the emulated one drift apart
+	private static final double MAX_RATE_DELTA = 0.005;
+	
+	// Samples (not pairs) per batch handed to the ring
+	private static final int BATCH = 1024;
+	
+	// Square wave duty patterns, one bit per eighth of a period
+	private static final int [] DUTY = { 0x01, 0x81, 0x87, 0x7E };
+	
+	// Wave output level by NR32 bits 5-6: mute, full, half, quarter
+	private static final int [] WAVE_SHIFTS = { 4, 0, 1, 2 };
+	
+	// Noise timer divisors by NR43 bits 0-2
+	private static final int [] NOISE_DIVISORS = { 8, 16, 32, 48, 64, 80, 96, 112 };
+	
+	// Length counting and the volume envelope, shared by all but the wave
+	private static class Channel {
+		boolean enabled, dacOn, lengthEnabled;
+		int length, volume, envelopePeriod, envelopeTimer;
+		boolean envelopeUp;
+		int timer, period;
+		
+		void clockLength() {
+			if (lengthEnabled && length > 0 && --length == 0) enabled = false;
+		}
+		
+		void clockEnvelope() {
+			if (envelopePeriod == 0 || --envelopeTimer > 0) return;
+			envelopeTimer = envelopePeriod;
+			if (envelopeUp && volume < 15) volume++;
+			else if (!envelopeUp && volume > 0) volume--;
+		}
+		
+		// NRx2: starting volume, direction and period. With the top five
+		// bits clear the DAC is off, which silences the channel.
+		void setEnvelope(int value) {
+			envelopePeriod = value & 0x07;
+			envelopeUp = (value & 0x08) != 0;
+			dacOn = (value & 0xF8) != 0;
+			if (!dacOn) enabled = false;
+		}
+		
+		void trigger(int nrx2, int maxLength) {
+			enabled = dacOn;
+			if (length == 0) length = maxLength;
+			volume = nrx2 >> 4;
+			envelopeTimer = envelopePeriod;
+			timer = period;
+		}
+		
+		void save(ByteBuffer buf) {
+			buf.put((byte) ((enabled ? 1 : 0) | (dacOn ? 2 : 0) | (lengthEnabled ? 4 : 0) | (envelopeUp ? 8 : 0)));
+			buf.putShort((short) length).put((byte) volume).put((byte) envelopePeriod).put((byte) envelopeTimer);
+			buf.putInt(timer).putInt(period);
+		}
+		
+		void load(ByteBuffer buf) {
+			int bits = buf.get();
+			enabled = (bits & 1) != 0;
+			dacOn = (bits & 2) != 0;
+			lengthEnabled = (bits & 4) != 0;
+			envelopeUp = (bits & 8) != 0;
+			length = buf.getShort();
+			volume = buf.get();
+			envelopePeriod = buf.get();
+			envelopeTimer = buf.get();
+			timer = buf.getInt();
+			period = buf.getInt();
+		}
+		
+		static final int STATE_SIZE = 14;
+	}
+	
+	private static final class Square extends Channel {
+		int duty, frequency, position;
+		
+		// Channel 1 only
+		int sweepPeriod, sweepShift, sweepTimer, shadowFrequency;
+		boolean sweepDown, sweepEnabled;
+		
+		void setFrequency(int f) {
+			frequency = f;
+			period = (2048 - f) * 4;
+		}
+		
+		// Move through the duty pattern by the given number of cycles
+		void run(int cycles) {
+			timer -= cycles;
+			while (timer <= 0) {
+				timer += period;
+				position = (position + 1) & 7;
+			}
+		}
+		
+		int output() {
+			return ((DUTY[duty] >> position) & 1) * volume;
+		}
+		
+		// The next swept frequency; over 2047 silences the channel
+		int sweep() {
+			int delta = shadowFrequency >> sweepShift;
+			int f = sweepDown ? shadowFrequency - delta : shadowFrequency + delta;
+			if (f > 2047) enabled = false;
+			return f;
+		}
+		
+		@Override
+		void save(ByteBuffer buf) {
+			super.save(buf);
+			buf.put((byte) duty).putShort((short) frequency).put((byte) position);
+			buf.put((byte) sweepPeriod).put((byte) sweepShift).put((byte) sweepTimer).putShort((short) shadowFrequency);
+			buf.put((byte) ((sweepDown ? 1 : 0) | (sweepEnabled ? 2 : 0)));
+		}
+		
+		@Override
+		void load(ByteBuffer buf) {
+			super.load(buf);
+			duty = buf.get();
+			frequency = buf.getShort();
+			position = buf.get();
+			sweepPeriod = buf.get();
+			sweepShift = buf.get();
+			sweepTimer = buf.get();
+			shadowFrequency = buf.getShort();
+			int bits = buf.get();
+			sweepDown = (bits & 1) != 0;
+			sweepEnabled = (bits & 2) != 0;
+		}
+	}
+	
+	private static final class Wave extends Channel {
+		int frequency, position, shift;
+		
+		void setFrequency(int f) {
+			frequency = f;
+			period = (2048 - f) * 2;
+		}
+		
+		void run(int cycles) {
+			timer -= cycles;
+			while (timer <= 0) {
+				timer += period;
+				position = (position + 1) & 31;
+			}
+		}
+		
+		// 32 four-bit samples, high nibble first
+		int output(byte [] waveRam) {
+			int b = waveRam[position >> 1] & 0xFF;
+			return ((position & 1) == 0 ? b >> 4 : b & 0x0F) >> shift;
+		}
+		
+		@Override
+		void save(ByteBuffer buf) {
+			super.save(buf);
+			buf.putShort((short) frequency).put((byte) position).put((byte) shift);
+		}
+		
+		@Override
+		void load(ByteBuffer buf) {
+			super.load(buf);
+			frequency = buf.getShort();
+			position = buf.get();
+			shift = buf.get();
+		}
+	}
+	
+	private static final class Noise extends Channel {
+		int lfsr = 0x7FFF;
+		boolean narrow;
+		
+		// NR43: clock shift, 7-bit mode and divisor
+		void setPolynomial(int value) {
+			narrow = (value & 0x08) != 0;
+			period = NOISE_DIVISORS[value & 0x07] << (value >> 4);
+		}
+		
+		void run(int cycles) {
+			timer -= cycles;
+			while (timer <= 0) {
+				timer += period;
+				int bit = (lfsr ^ (lfsr >> 1)) & 1;
+				lfsr = (lfsr >> 1) | (bit << 14);
+				if (narrow) lfsr = (lfsr & ~0x40) | (bit << 6);
+			}
+		}
+		
+		int output() {
+			return (~lfsr & 1) * volume;
+		}
+		
+		@Override
+		void save(ByteBuffer buf) {
+			super.save(buf);
+			buf.putShort((short) lfsr).put((byte) (narrow ? 1 : 0));
+		}
+		
+		@Override
+		void load(ByteBuffer buf) {
+			super.load(buf);
+			lfsr = buf.getShort() & 0x7FFF;
+			narrow = buf.get() != 0;
+		}
+	}
+	
+	private final MMU mmu;
+	private final Scheduler scheduler;
+	
+	private final Square square1 = new Square();
+	private final Square square2 = new Square();
+	private final Wave wave = new Wave();
+	
+	// NR50, NR51 and wave RAM as the channels last heard them. The MMU
+	// stores a write before passing it on, so these are kept here and only
+	// change once everything before the write has been synthesized.
+	private int nr50, nr51;
+	private final byte [] waveRam = new byte[16];
+	private final Noise noise = new Noise();
+	
+	private boolean powered;
+	private int sequencerStep = 0;
+	
+	// Cycle the channels have been run up to
+	private long lastCycle;
+	
+	// Output: where samples go, the nominal rate, and the cycle (in 1/65536ths)
+	// the next sample falls on and the distance between samples
+	private AudioRing ring;
+	private int sampleRate = DEFAULT_SAMPLE_RATE;
+	private boolean rateControl = false;
+	private double rateRatio = 1;
+	private long sampleTime;
+	private long sampleStep;
+	private final short [] batch = new short[BATCH];
+	private int batched = 0;
+	
+	// Statistics
+	private long samplesProduced = 0;
+	
+	public APU(MMU mmu, Scheduler scheduler) {
+		this.mmu = mmu;
+		this.scheduler = scheduler;
+		for (int addr = NR10; addr <= NR52; addr++) mmu.setIoHandler(addr, this);
+		for (int addr = WAVE_RAM; addr < WAVE_RAM + 16; addr++) mmu.setIoHandler(addr, this);
+		scheduler.setHandler(Scheduler.EVENT_APU, this::stepSequencer);
+		
+		// Take up whatever the registers were set to at power on, without
+		// triggering anything
+		powered = (mmu.readByte(NR52) & 0x80) != 0;
+		latchWaveRam();
+		for (int addr = NR10; addr < NR52; addr++) {
+			if (addr != NR14 && addr != NR24 && addr != NR34 && addr != NR44) {
+				apply(addr, mmu.readByte(addr));
+			}
+		}
+		lastCycle = scheduler.getNow();
+		scheduler.schedule(Scheduler.EVENT_APU, lastCycle + SEQUENCER_PERIOD);
+		updateStatus();
+	}
+	
+	// Send samples to the ring, or stop producing them with null. Rate
+	// control suits a consumer that plays in real time; a file writer wants
+	// the exact rate.
+	public void setOutput(AudioRing ring, int sampleRate, boolean rateControl) {
+		synthesize(scheduler.getNow());
+		this.ring = ring;
+		this.sampleRate = sampleRate;
+		this.rateControl = rateControl;
+		rateRatio = 1;
+		sampleStep = stepFor(1);
+		sampleTime = lastCycle << 16;
+		batched = 0;
+	}
+	
+	private long stepFor(double ratio) {
+		return (long) (Scheduler.CLOCK_HZ * 65536.0 / (sampleRate * ratio));
+	}
+	
+	@Override
+	public void ioWrite(int addr, int value) {
+		synthesize(scheduler.getNow());
+		if (addr >= WAVE_RAM) {
+			waveRam[addr - WAVE_RAM] = (byte) value;
+			return;
+		}
+		if (addr == NR52) {
+			boolean on = (value & 0x80) != 0;
+			if (powered && !on) powerOff();
+			powered = on;
+		} else if (!powered) {
+			// Everything but NR52 and wave RAM ignores writes while off
+			mmu.setIoRegister(addr, 0);
+		} else {
+			apply(addr, value);
+		}
+		updateStatus();
+	}
+	
+	// Pass a register value on to its channel
+	private void apply(int addr, int value) {
+		switch (addr) {
+		case NR10:
+			square1.sweepPeriod = (value >> 4) & 0x07;
+			square1.sweepDown = (value & 0x08) != 0;
+			square1.sweepShift = value & 0x07;
+			break;
+		case NR11, NR21:
+			Square s = (addr == NR11) ? square1 : square2;
+			s.duty = value >> 6;
+			s.length = 64 - (value & 0x3F);
+			break;
+		case NR12: square1.setEnvelope(value); break;
+		case NR22: square2.setEnvelope(value); break;
+		case NR42: noise.setEnvelope(value); break;
+		case NR13: square1.setFrequency((square1.frequency & 0x700) | value); break;
+		case NR23: square2.setFrequency((square2.frequency & 0x700) | value); break;
+		case NR33: wave.setFrequency((wave.frequency & 0x700) | value); break;
+		case NR14, NR24:
+			Square sq = (addr == NR14) ? square1 : square2;
+			sq.setFrequency((sq.frequency & 0xFF) | ((value & 0x07) << 8));
+			sq.lengthEnabled = (value & 0x40) != 0;
+			if ((value & 0x80) != 0) {
+				sq.trigger(mmu.readByte(addr - 2), 64);
+				if (sq == square1) triggerSweep();
+			}
+			break;
+		case NR30:
+			wave.dacOn = (value & 0x80) != 0;
+			if (!wave.dacOn) wave.enabled = false;
+			break;
+		case NR31: wave.length = 256 - value; break;
+		case NR32: wave.shift = WAVE_SHIFTS[(value >> 5) & 0x03]; break;
+		case NR34:
+			wave.setFrequency((wave.frequency & 0xFF) | ((value & 0x07) << 8));
+			wave.lengthEnabled = (value & 0x40) != 0;
+			if ((value & 0x80) != 0) {
+				wave.enabled = wave.dacOn;
+				if (wave.length == 0) wave.length = 256;
+				wave.timer = wave.period;
+				wave.position = 0;
+			}
+			break;
+		case NR41: noise.length = 64 - (value & 0x3F); break;
+		case NR43: noise.setPolynomial(value); break;
+		case NR44:
+			noise.lengthEnabled = (value & 0x40) != 0;
+			if ((value & 0x80) != 0) {
+				noise.trigger(mmu.readByte(NR42), 64);
+				noise.lfsr = 0x7FFF;
+			}
+			break;
+		case NR50: nr50 = value; break;
+		case NR51: nr51 = value; break;
+		default:
+			break;
+		}
+	}
+	
+	private void triggerSweep() {
+		Square s = square1;
+		s.shadowFrequency = s.frequency;
+		s.sweepTimer = (s.sweepPeriod == 0) ? 8 : s.sweepPeriod;
+		s.sweepEnabled = s.sweepPeriod != 0 || s.sweepShift != 0;
+		if (s.sweepShift != 0) s.sweep();
+	}
+	
+	private void powerOff() {
+		for (int addr = NR10; addr < NR52; addr++) {
+			mmu.setIoRegister(addr, 0);
+			apply(addr, 0);
+		}
+		square1.enabled = square2.enabled = wave.enabled = noise.enabled = false;
+	}
+	
+	// NR52 shows power and which channels are playing
+	private void updateStatus() {
+		int status = (powered ? 0x80 : 0) | 0x70
+				| (square1.enabled ? 1 : 0) | (square2.enabled ? 2 : 0)
+				| (wave.enabled ? 4 : 0) | (noise.enabled ? 8 : 0);
+		mmu.setIoRegister(NR52, status);
+	}
+	
+	// 512 Hz: lengths on even steps, the sweep on 2 and 6, envelopes on 7
+	private void stepSequencer(long due) {
+		synthesize(due);
+		if (powered) {
+			if ((sequencerStep & 1) == 0) {
+				square1.clockLength();
+				square2.clockLength();
+				wave.clockLength();
+				noise.clockLength();
+			}
+			if (sequencerStep == 2 || sequencerStep == 6) clockSweep();
+			if (sequencerStep == 7) {
+				square1.clockEnvelope();
+				square2.clockEnvelope();
+				noise.clockEnvelope();
+			}
+			updateStatus();
+		}
+		sequencerStep = (sequencerStep + 1) & 7;
+		scheduler.schedule(Scheduler.EVENT_APU, due + SEQUENCER_PERIOD);
+	}
+	
+	private void clockSweep() {
+		Square s = square1;
+		if (--s.sweepTimer > 0) return;
+		s.sweepTimer = (s.sweepPeriod == 0) ? 8 : s.sweepPeriod;
+		if (!s.sweepEnabled || s.sweepPeriod == 0) return;
+		int f = s.sweep();
+		if (f <= 2047 && s.sweepShift != 0) {
+			s.shadowFrequency = f;
+			s.setFrequency(f);
+			mmu.setIoRegister(NR13, f & 0xFF);
+			mmu.setIoRegister(NR14, (mmu.readByte(NR14) & ~0x07) | (f >> 8));
+			s.sweep();
+		}
+	}
+	
+	// Produce every sample due up to the given cycle, with the channels
+	// as they are now
+	private void synthesize(long until) {
+		if (ring == null) {
+			lastCycle = until;
+			return;
+		}
+		int leftVolume = ((nr50 >> 4) & 0x07) + 1;
+		int rightVolume = (nr50 & 0x07) + 1;
+		while ((sampleTime >> 16) <= until) {
+			long t = sampleTime >> 16;
+			run((int) (t - lastCycle));
+			lastCycle = t;
+			
+			// Each channel centred on zero, -15 to 15
+			int c1 = square1.enabled ? 2 * square1.output() - 15 : 0;
+			int c2 = square2.enabled ? 2 * square2.output() - 15 : 0;
+			int c3 = wave.enabled ? 2 * wave.output(waveRam) - 15 : 0;
+			int c4 = noise.enabled ? 2 * noise.output() - 15 : 0;
+			int left = ((nr51 & 0x10) != 0 ? c1 : 0) + ((nr51 & 0x20) != 0 ? c2 : 0)
+					+ ((nr51 & 0x40) != 0 ? c3 : 0) + ((nr51 & 0x80) != 0 ? c4 : 0);
+			int right = ((nr51 & 0x01) != 0 ? c1 : 0) + ((nr51 & 0x02) != 0 ? c2 : 0)
+					+ ((nr51 & 0x04) != 0 ? c3 : 0) + ((nr51 & 0x08) != 0 ? c4 : 0);
+			batch[batched++] = (short) (left * leftVolume * 64);
+			batch[batched++] = (short) (right * rightVolume * 64);
+			if (batched == BATCH) flush();
+			sampleTime += sampleStep;
+		}
+		run((int) (until - lastCycle));
+		lastCycle = until;
+		flush();
+	}
+	
+	// Move every playing channel's waveform on by the given cycles
+	private void run(int cycles) {
+		if (cycles <= 0) return;
+		if (square1.enabled) square1.run(cycles);
+		if (square2.enabled) square2.run(cycles);
+		if (wave.enabled) wave.run(cycles);
+		if (noise.enabled) noise.run(cycles);
+	}
+	
+	private void flush() {
+		if (batched == 0) return;
+		ring.write(batch, 0, batched);
+		samplesProduced += batched;
+		batched = 0;
+		if (rateControl) {
+			rateRatio = 1 + MAX_RATE_DELTA * (1 - 2 * ring.getFillLevel());
+			sampleStep = stepFor(rateRatio);
+		}
+	}
+	
+	// Save state: the channels and the sequencer; the registers themselves
+	// are in the I/O page
+	void saveState(ByteBuffer buf) {
+		synthesize(scheduler.getNow());
+		square1.save(buf);
+		square2.save(buf);
+		wave.save(buf);
+		noise.save(buf);
+		buf.put((byte) ((powered ? 1 : 0) | (sequencerStep << 1)));
+		buf.putLong(lastCycle);
+	}
+	
+	void loadState(ByteBuffer buf) {
+		square1.load(buf);
+		square2.load(buf);
+		wave.load(buf);
+		noise.load(buf);
+		int bits = buf.get();
+		powered = (bits & 1) != 0;
+		sequencerStep = (bits >> 1) & 7;
+		lastCycle = buf.getLong();
+		sampleTime = lastCycle << 16;
+		batched = 0;
+		nr50 = mmu.readByte(NR50);
+		nr51 = mmu.readByte(NR51);
+		latchWaveRam();
+	}
+	
+	private void latchWaveRam() {
+		for (int i = 0; i < waveRam.length; i++) waveRam[i] = (byte) mmu.readByte(WAVE_RAM + i);
+	}
+	
+	static int stateSize() { return 4 * Channel.STATE_SIZE + 2 * 11 + 4 + 3 + 9; }
+	
+	public int getSampleRate() { return sampleRate; }
+	public double getRateRatio() { return rateRatio; }
+	public long getSamplesProduced() { return samplesProduced; }
+	public AudioRing getOutput() { return ring; }
+}
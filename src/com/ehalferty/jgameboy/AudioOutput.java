@@ -0,0 +1,95 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+// Plays samples from an AudioRing through the default sound line on a
+// thread of its own, so the emulation thread never waits on the sound card.
+// The line's own buffer paces this thread; when the ring runs dry and the
+// line is about to as well, a chunk of silence goes out instead.
+public class AudioOutput implements AutoCloseable {
+	
+	// Samples per write to the line (about 10 ms of stereo at 48 kHz), and
+	// how many writes the line buffers
+	private static final int CHUNK = 960;
+	private static final int LINE_CHUNKS = 4;
+	
+	private final AudioRing ring;
+	private final SourceDataLine line;
+	private final Thread thread;
+	private volatile boolean running = true;
+	
+	// Chunks padded with silence because the ring had too little
+	private volatile long underruns = 0;
+	
+	public AudioOutput(AudioRing ring, int sampleRate) throws LineUnavailableException {
+		this.ring = ring;
+		AudioFormat format = new AudioFormat(sampleRate, 16, 2, true, false);
+		line = AudioSystem.getSourceDataLine(format);
+		line.open(format, CHUNK * 2 * LINE_CHUNKS);
+		line.start();
+		thread = new Thread(this::play, "audio");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void play() {
+		short [] samples = new short[CHUNK];
+		byte [] bytes = new byte[CHUNK * 2];
+		while (running) {
+			int n = 0;
+			while (running && n < CHUNK) {
+				n += ring.read(samples, n, CHUNK - n);
+				if (n == CHUNK) break;
+				if (line.getBufferSize() - line.available() < bytes.length) {
+					// Less than a chunk left to play: fill with silence now
+					while (n < CHUNK) samples[n++] = 0;
+					underruns++;
+				} else {
+					LockSupport.parkNanos(1000000);
+				}
+			}
+			for (int i = 0; i < CHUNK; i++) {
+				bytes[2 * i] = (byte) samples[i];
+				bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+			}
+			line.write(bytes, 0, bytes.length);
+		}
+	}
+	
+	@Override
+	public void close() {
+		running = false;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		line.stop();
+		line.close();
+	}
+	
+	public long getUnderruns() { return underruns; }
+}
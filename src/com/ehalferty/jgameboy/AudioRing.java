@@ -0,0 +1,81 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// A lock-free ring of 16-bit samples between exactly one producer (the
+// emulation thread, through the APU) and one consumer (the audio output).
+// Each side owns one counter and only reads the other's, so neither ever
+// waits: a full ring drops what doesn't fit and an empty one returns short.
+// The counters only grow; masking them gives the position in the array.
+public class AudioRing {
+	
+	private final short [] data;
+	private final int mask;
+	
+	// Next sample to write (owned by the producer) and to read (consumer).
+	// Each is published with a release store after the samples are copied.
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	
+	// Samples the producer had to throw away, written by it alone
+	private volatile long dropped = 0;
+	
+	// Capacity in samples, rounded up to a power of two
+	public AudioRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		data = new short[size];
+		mask = size - 1;
+	}
+	
+	// Producer: copy in as many samples as fit, returning how many did
+	public int write(short [] src, int off, int len) {
+		long h = head.get();
+		int n = (int) Math.min(len, data.length - (h - tail.get()));
+		int at = (int) (h & mask);
+		int first = Math.min(n, data.length - at);
+		System.arraycopy(src, off, data, at, first);
+		System.arraycopy(src, off + first, data, 0, n - first);
+		head.lazySet(h + n);
+		if (n < len) dropped += len - n;
+		return n;
+	}
+	
+	// Consumer: copy out up to len samples, returning how many there were
+	public int read(short [] dst, int off, int len) {
+		long t = tail.get();
+		int n = (int) Math.min(len, head.get() - t);
+		int at = (int) (t & mask);
+		int first = Math.min(n, data.length - at);
+		System.arraycopy(data, at, dst, off, first);
+		System.arraycopy(data, 0, dst, off + first, n - first);
+		tail.lazySet(t + n);
+		return n;
+	}
+	
+	// Samples waiting to be read, as seen from either side
+	public int available() { return (int) (head.get() - tail.get()); }
+	
+	// How full the ring is, from 0 to 1
+	public double getFillLevel() { return (double) available() / data.length; }
+	
+	public int capacity() { return data.length; }
+	public long getDropped() { return dropped; }
+}
@@ -0,0 +1,200 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.Arrays;
+
+// Caches straight-line runs of instructions ("blocks") keyed by their start
+// PC, so hot code is fetched and decoded once instead of on every pass.
+// A block ends at the first instruction that can change PC, at EI/DI/RETI,
+// HALT or STOP, or at the end of its 256-byte page, so it never spans two pages.
+//
+// A block remembers which page data it was read from. A ROM bank switch
+// shows up as a different page, and the block is rebuilt. Blocks in RAM are
+// also protected through the MMU: the first write to their page throws away
+// every block on it. Pages that keep getting rewritten stop being cached.
+//
+// Blocks that only read memory and end in a jump are marked as possible
+// spin loops, for the emulator to fast-forward when they poll a register
+// that only a hardware event can change.
+public class BlockCache implements MMU.CodeWatcher {
+	
+	// Longest block, in instructions
+	static final int MAX_BLOCK = 32;
+	
+	// Invalidations after which a page is left to the interpreter
+	static final int MAX_INVALIDATIONS = 16;
+	
+	// How far each opcode moves PC, or 0 if it ends a block. These follow
+	// what CPU.execute() actually does, which is not always what real
+	// hardware does (0xFA, for one, does not skip its operand).
+	static final int [] LENGTH = {
+	//	 0  1  2  3  4  5  6  7  8  9  A  B  C  D  E  F
+		 1, 3, 1, 1, 1, 1, 2, 1, 3, 1, 1, 1, 1, 1, 2, 1, // 0x
+		 0, 3, 1, 1, 1, 1, 2, 1, 0, 1, 1, 1, 1, 1, 2, 1, // 1x
+		 0, 3, 1, 1, 1, 1, 2, 0, 0, 1, 1, 1, 1, 1, 2, 1, // 2x
+		 0, 3, 1, 1, 1, 1, 2, 1, 0, 1, 1, 1, 1, 1, 2, 1, // 3x
+		 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 4x
+		 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 5x
+		 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 6x
+		 1, 1, 1, 1, 1, 1, 0, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 7x
+		 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 8x
+		 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 9x
+		 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // Ax
+		 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // Bx
+		 0, 1, 0, 0, 0, 1, 2, 0, 0, 0, 0, 2, 0, 0, 2, 0, // Cx
+		 0, 1, 0, 0, 0, 1, 2, 0, 0, 0, 0, 0, 0, 0, 2, 0, // Dx
+		 2, 1, 1, 0, 0, 1, 2, 0, 2, 0, 3, 0, 0, 0, 2, 0, // Ex
+		 2, 1, 1, 0, 0, 1, 2, 0, 2, 1, 1, 0, 0, 0, 2, 0, // Fx
+	};
+	
+	// A decoded block: its opcodes, and where each one starts
+	static final class Block {
+		final int pc;
+		final byte [] source;
+		final int base;
+		final int [] ops;
+		final int count;
+		final boolean spins;
+		long runs = 0;
+		
+		// Set by the JIT once the block is hot
+		Jit.CompiledBlock compiled;
+		
+		Block(int pc, byte [] source, int base, int [] ops, int count, boolean spins) {
+			this.pc = pc;
+			this.source = source;
+			this.base = base;
+			this.ops = ops;
+			this.count = count;
+			this.spins = spins;
+		}
+	}
+	
+	private final MMU mmu;
+	private final Block [] blocks = new Block[0x10000];
+	private final int [] invalidations = new int[0x100];
+	private final int [] scratch = new int[MAX_BLOCK];
+	
+	// Set when a block is thrown away or an interrupt is raised, so a running
+	// block stops after its current instruction
+	boolean stop = false;
+	
+	// Statistics
+	private long built = 0;
+	private long discarded = 0;
+	
+	public BlockCache(MMU mmu) {
+		this.mmu = mmu;
+		mmu.setCodeWatcher(this);
+	}
+	
+	// The block starting at pc, decoding it if needed. Returns null where
+	// the interpreter should run instead.
+	Block lookup(int pc) {
+		int page = pc >> 8;
+		Block b = blocks[pc];
+		if (b != null && b.source == mmu.getPageData(page) && b.base == mmu.getPageBase(page)) {
+			return b;
+		}
+		if (invalidations[page] >= MAX_INVALIDATIONS) return null;
+		b = build(pc);
+		blocks[pc] = b;
+		return b;
+	}
+	
+	private Block build(int pc) {
+		int page = pc >> 8;
+		int end = (page + 1) << 8;
+		int count = 0;
+		int addr = pc;
+		boolean readOnly = true;
+		boolean spins = false;
+		while (count < MAX_BLOCK) {
+			int instr = mmu.readByte(addr);
+			int length = LENGTH[instr];
+			if (length == 0) {
+				scratch[count++] = instr;
+				spins = readOnly && isJump(instr);
+				break;
+			}
+			if (addr + length > end) break;
+			scratch[count++] = instr;
+			readOnly &= (instr == 0xCB) ? isBit(mmu.readByte(addr + 1)) : isReadOnly(instr);
+			addr += length;
+			if (addr == end) break;
+		}
+		if (count == 0) return null;
+		
+		mmu.watchCode(page);
+		built++;
+		return new Block(pc, mmu.getPageData(page), mmu.getPageBase(page),
+				Arrays.copyOf(scratch, count), count, spins);
+	}
+	
+	// Instructions that touch nothing but A-L and the flags
+	private static boolean isReadOnly(int op) {
+		if (op >= 0x40 && op < 0xC0) return op < 0x70 || op >= 0x78;
+		switch (op) {
+		case 0x00, 0x07, 0x0F, 0x17, 0x1F, 0x2F, 0x37, 0x3F:
+		case 0x04, 0x0C, 0x14, 0x1C, 0x24, 0x2C, 0x3C:
+		case 0x05, 0x0D, 0x15, 0x1D, 0x25, 0x2D, 0x3D:
+		case 0x06, 0x0E, 0x16, 0x1E, 0x26, 0x2E, 0x3E:
+		case 0x0A, 0x1A, 0xF0, 0xF2, 0xFA:
+		case 0xC6, 0xCE, 0xD6, 0xDE, 0xE6, 0xEE, 0xF6, 0xFE:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	// CB-prefixed BIT n,r only tests
+	private static boolean isBit(int cb) {
+		return cb >= 0x40 && cb < 0x80;
+	}
+	
+	// JR and JP, with or without a condition
+	private static boolean isJump(int op) {
+		switch (op) {
+		case 0x18, 0x20, 0x28, 0x30, 0x38, 0xC2, 0xC3, 0xCA, 0xD2, 0xDA:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	// Called by the MMU when a page holding blocks is written or remapped
+	@Override
+	public void codeWritten(int page) {
+		Arrays.fill(blocks, page << 8, (page + 1) << 8, null);
+		invalidations[page]++;
+		stop = true;
+		discarded++;
+	}
+	
+	// Forget everything, after memory has been replaced wholesale
+	public void clear() {
+		Arrays.fill(blocks, null);
+		Arrays.fill(invalidations, 0);
+		stop = true;
+	}
+	
+	public long getBlocksBuilt() { return built; }
+	public long getPagesInvalidated() { return discarded; }
+}
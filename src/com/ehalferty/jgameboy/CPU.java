@@ -26,30 +26,91 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
 
 public class CPU {
 	
-	// CPU data
+	// CPU data. Registers are masked to 8 or 16 bits whenever they're
+	// written, so they can be read as they are.
 	private int A, B, C, D, E, H, L, M, T;
-	private int SP, PC, AF, BC, DE, HL;
+	private int SP, PC;
 	private boolean FZ, FC, FH, FN;
-	private int [] mem = new int [0x10000];
+	
+	// Z, H and N are worked out lazily. ALU helpers record the kind of
+	// operation that last set them and the values it used (flagA, flagB,
+	// flagR), and flushFlags() brings FZ/FH/FN up to date only when something
+	// reads them: a conditional branch on Z, an instruction that keeps Z, or
+	// getF(). Every recorded kind sets all three, so a new one can simply
+	// replace a pending one. Carry is a single compare that ADC, SBC, the
+	// rotates and half the branches read right back, so it stays eager.
+	private static final int FLAGS_READY = 0;  // the flag fields are current
+	private static final int FLAGS_ADD8 = 1;   // flagB + ... = flagR
+	private static final int FLAGS_SUB8 = 2;   // flagA - flagB ... = flagR
+	private static final int FLAGS_SUB16 = 3;
+	private static final int FLAGS_LOGIC = 4;  // flagR, with H = flagB
+	private static final int FLAGS_ROTATE = 5; // flagR
+	private static final int FLAGS_INC8 = 6;   // flagA + 1 = flagR
+	private static final int FLAGS_DEC8 = 7;   // flagA - 1 = flagR
+	private int flagOp = FLAGS_READY;
+	private int flagA, flagB, flagR;
+	private final MMU mmu;
 	private boolean interrupts_enabled, running;
 	
+	// Interrupt state. HALT (and STOP) idle until an interrupt is pending,
+	// and EI only takes effect after the instruction that follows it.
+	private final Interrupts interrupts;
+	private boolean halted, stopped, eiDelay;
+	
 	// Emulator data
-	private int trace_count = 0;
+	private TraceSink traceSink;
+	
 	
+	// Clock cycles (T-states) per opcode. Conditional branches are listed at
+	// their not-taken cost; step() charges the taken cost itself. Illegal
+	// opcodes lock up real hardware, here they are charged as a NOP.
+	static final int [] CYCLES = {
+		 4, 12,  8,  8,  4,  4,  8,  4, 20,  8,  8,  8,  4,  4,  8,  4, // 0x
+		 4, 12,  8,  8,  4,  4,  8,  4, 12,  8,  8,  8,  4,  4,  8,  4, // 1x
+		 8, 12,  8,  8,  4,  4,  8,  4,  8,  8,  8,  8,  4,  4,  8,  4, // 2x
+		 8, 12,  8,  8, 12, 12, 12,  4,  8,  8,  8,  8,  4,  4,  8,  4, // 3x
+		 4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4, // 4x
+		 4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4, // 5x
+		 4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4, // 6x
+		 8,  8,  8,  8,  8,  8,  4,  8,  4,  4,  4,  4,  4,  4,  8,  4, // 7x
+		 4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4, // 8x
+		 4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4, // 9x
+		 4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4, // Ax
+		 4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4, // Bx
+		 8, 12, 12, 16, 12, 16,  8, 16,  8, 16, 12,  4, 12, 24,  8, 16, // Cx
+		 8, 12, 12,  4, 12, 16,  8, 16,  8, 16, 12,  4, 12,  4,  8, 16, // Dx
+		12, 12,  8,  4,  4, 16,  8, 16, 16,  4, 16,  4,  4,  4,  8, 16, // Ex
+		12, 12,  8,  4,  4, 16,  8, 16, 12,  8, 16,  4,  4,  4,  8, 16  // Fx
+	};
+	
+	// Clock cycles per CB-prefixed opcode, including the prefix byte. Only
+	// the (HL) operand column differs: 16, or 12 for BIT which doesn't write.
+	private static final int [] CB_CYCLES = new int[0x100];
+	static {
+		for (int i = 0; i < 0x100; i++) {
+			if ((i & 0x7) != 6) CB_CYCLES[i] = 8;
+			else if (i >= 0x40 && i < 0x80) CB_CYCLES[i] = 12;
+			else CB_CYCLES[i] = 16;
+		}
+	}
 	
 	// Constructor
 	public CPU(byte [] cartBytes) {
-		
-		// Clear all memory
-		for (int i = 0; i < mem.length; i++) {
-			mem[i] = 0;
-		}
-		for (int i = 0; i < cartBytes.length; i++) {
-			mem[i] = cartBytes[i];
-		}
+		this(new MMU(new Cartridge(cartBytes)));
+	}
+	
+	public CPU(MMU mmu) {
+		this(mmu, new Interrupts(mmu));
+	}
+	
+	public CPU(MMU mmu, Interrupts interrupts) {
+		this.mmu = mmu;
+		this.interrupts = interrupts;
 		
 		// Reset the CPU data
 		reset();
@@ -66,6 +127,7 @@ public class CPU {
 		M = 0;
 		T = 0;
 		interrupts_enabled = false;
+		halted = stopped = eiDelay = false;
 		running = true;
 		writeByte(0xFF05, 0x00); // TIMA
 		writeByte(0xFF06, 0x00); // TMA
@@ -101,277 +163,343 @@ public class CPU {
 	}
 	
 	
-	// Read/Decode/Execute one instruction
-	// TODO: Add correct timing
-	public void step() {
+	// Read/Decode/Execute one instruction, returning the clock cycles it took
+	public int step() {
 		
-		// Make sure all registers are 8-bits or 16-bits.
-		maskRegs();
+		// Take an interrupt or sit out a HALT instead, if there's one to deal with
+		if (needsService()) {
+			int t = serviceInterrupts();
+			if (t != 0) return t;
+		}
 		
 		// Read and break apart an instruction
 		int instr = readByte(PC) & 0xFF;
-		int ih = (byte) ((instr >> 4) & 0x0F);
-		int il = (byte) (instr & 0x0F);
-		int op2 = decodeOp2(il);
 		
-		// Print out each instruction as it runs
-		System.out.println(trace_count++ +
-				") PC=" + Integer.toHexString(PC) +
-				"\tSP=" + Integer.toHexString(SP) +
-				"\tI=" + Integer.toHexString(instr) +
-				"\tAF=" + Integer.toHexString(getAF()) +
-				"\tBC=" + Integer.toHexString(getBC()) +
-				"\tDE=" + Integer.toHexString(getDE()) +
-				"\tHL=" + Integer.toHexString(getHL()));
+		// Report each instruction as it runs, if anyone is listening
+		if (traceSink != null) {
+			traceSink.trace(PC, SP, instr, getAF(), getBC(), getDE(), getHL());
+		}
+		return execute(instr);
+	}
+	
+	// Whether step() has work to do before the next instruction: an
+	// interrupt to take, a HALT to sit out, or an EI coming into effect.
+	// Cached blocks leave all of those to step().
+	boolean needsService() {
+		return halted || eiDelay || (interrupts_enabled && interrupts.getPending() != 0);
+	}
+	
+	// Halted with nothing to wake it: only a scheduled event can change that
+	boolean isIdle() {
+		if (!halted) return false;
+		return stopped ? (interrupts.getRequested() & Interrupts.JOYPAD) == 0 : interrupts.getPending() == 0;
+	}
+	
+	// Returns the clock cycles used, or 0 to go on and run the instruction at PC
+	private int serviceInterrupts() {
+		if (halted) {
+			// Any enabled request ends a HALT, even with interrupts off.
+			// STOP only ends on a button press.
+			if (isIdle()) {
+				M = 1; T = 4;
+				return 4;
+			}
+			halted = stopped = false;
+		}
+		if (eiDelay) {
+			// The instruction after EI runs first
+			eiDelay = false;
+			interrupts_enabled = true;
+			return 0;
+		}
+		int pending = interrupts.getPending();
+		if (!interrupts_enabled || pending == 0) return 0;
 		
-		// TODO: Lookup table of timings
+		// Call the highest priority handler with interrupts off. Like CALL,
+		// push the address before the return point: RETI adds one.
+		interrupts_enabled = false;
+		push((PC - 1) & 0xFFFF);
+		PC = interrupts.acknowledge(pending & -pending);
+		M = 5; T = 20;
+		return 20;
+	}
+	
+	// Run an opcode the block cache already fetched from PC
+	int stepDecoded(int instr) {
+		return execute(instr);
+	}
+	
+	// Compiled blocks keep registers in their own locals and write them
+	// straight back, then finish the last instruction's bookkeeping here.
+	// A block running to the end of memory ends at 0x10000, so wrap it as
+	// execute() does.
+	void endCompiled(int pc, int t) {
+		PC = pc & 0xFFFF;
+		M = t >> 2;
+		T = t;
+	}
+	
+	// Lets the JIT define compiled blocks as nestmates of the CPU
+	static MethodHandles.Lookup lookup() {
+		return MethodHandles.lookup();
+	}
+	
+	// Execute the opcode at PC, returning the clock cycles it took
+	private int execute(int instr) {
+		
+		// Clock cycles, raised below when a conditional branch is taken
+		int t = CYCLES[instr];
+		
+		// Dispatch through a dense switch so the JIT emits a single jump table
+		switch (instr) {
+		case 0x00: break; // NOP
+		case 0x01: setBC(readShort(++PC)); PC++; break;
+		case 0x02: writeShort(getBC(), A); break;
+		case 0x03: setBC(inc16(getBC())); break;
+		case 0x04: B = inc8(B); break;
+		case 0x05: B = dec8(B); break;
+		case 0x06: B = readByte(++PC); break;
+		case 0x07: A = rlc8(A); break;
+		case 0x08: writeShort(readShort(++PC), SP);  PC++; break;
+		case 0x09: setHL(add16(getHL(), getBC())); break;
+		case 0x0A: A = readByte(getBC()); break;
+		case 0x0B: setBC(dec16safe(getBC())); break;
+		case 0x0C: C = inc8(C); break;
+		case 0x0D: C = dec8(C); break;
+		case 0x0E: C = readByte(++PC); break;
+		case 0x0F: A = rrc8(A); break;
+		
+		case 0x10: PC++; halted = stopped = true; break; // STOP 0
+		case 0x11: setDE(readShort(++PC)); PC++; break;
+		case 0x12: writeShort(getDE(), A); break;
+		case 0x13: setDE(inc16safe(getDE())); break;
+		case 0x14: D = inc8(D); break;
+		case 0x15: D = dec8(D); break;
+		case 0x16: D = readByte(++PC); break;
+		case 0x17: A = rl8(A); break;
+		case 0x18: PC += 1 + (byte) readByte(++PC); break;
+		case 0x19: setHL(add16(getHL(), getDE())); break;
+		case 0x1A: A = readByte(getDE()); break;
+		case 0x1B: setDE(dec16safe(getDE())); break;
+		case 0x1C: E = inc8(E); break;
+		case 0x1D: E = dec8(E); break;
+		case 0x1E: E = readByte(++PC); break;
+		case 0x1F: A = rr8(A); break;
+		
+		case 0x20: if (!zf()) t = 12; PC += 1 + (zf()? 0 : (byte) readByte(PC + 1)); break;
+		case 0x21: setHL(readShort(++PC)); PC++; break;
+		case 0x22: writeShort(getHL(), A); setHL(inc16(getHL())); break;
+		case 0x23: setHL(inc16(getHL())); break;
+		case 0x24: H = inc8(H); break;
+		case 0x25: H = dec8(H); break;
+		case 0x26: H = readByte(++PC); break;
+		case 0x27: System.out.println("DAA encountered. Should implement."); running = false; break;
+		case 0x28: if (zf()) t = 12; PC += 1 + (zf()? readShort(PC + 1) : 0); break;
+		case 0x29: setHL(add16(getHL(), getHL())); break;
+		case 0x2A: A = readByte(getHL()); setHL(inc16safe(getHL())); break;
+		case 0x2B: setHL(dec16safe(getHL())); break;
+		case 0x2C: L = inc8(L); break;
+		case 0x2D: L = dec8(L); break;
+		case 0x2E: L = readByte(++PC); break;
+		case 0x2F: A =  ~A & 0xFF; flushFlags(); FH = true; FN = true; break;
+		
+		case 0x30: if (!FC) t = 12; PC += 1 + (FC? 0 : (byte) readByte(PC + 1)); break;
+		case 0x31: SP = readShort(++PC); PC++; break;
+		case 0x32: writeShort(getHL(), A); setHL(dec16(getHL())); break;
+		case 0x33: SP = inc16(SP) & 0xFFFF; break;
+		case 0x34: setHL(inc16(getHL())); break;
+		case 0x35: setHL(dec16(getHL())); break;
+		case 0x36: writeByte(getHL(), readByte(++PC)); break;
+		case 0x37: flushFlags(); FC = true; FH = false; FN = false; break;
+		case 0x38: if (FC) t = 12; PC += 1 + (FC? readShort(PC + 1) : 0); break;
+		case 0x39: setHL(add16(getHL(), SP)); break;
+		case 0x3A: A = readByte(getHL()); setHL(dec16(getHL())); break;
+		case 0x3B: SP = dec16(SP) & 0xFFFF; break;
+		case 0x3C: A = inc8(A); break;
+		case 0x3D: A = dec8(A); break;
+		case 0x3E: A = readByte(++PC); break;
+		case 0x3F: flushFlags(); FC = !FC; FN = false; FH = false; break;
 		
 		// LD instructions
-		if ((3 < ih) && (ih < 8)) {
-			if (il < 8) {
-				if (ih == 4) B = op2;
-				else if (ih == 5) D = op2;
-				else if (ih == 6) H = op2;
-				else if (ih == 7) writeByte(getHL(), op2);
-			} else {
-				if (ih == 4) C = op2;
-				else if (ih == 5) E = op2;
-				else if (ih == 6) L = op2;
-				else if (ih == 7) A = op2;
-			}
-		// ADD/SUB/AND/OR/ADC/SBC/XOR/CP instructions
-		} else if ((7 < ih) && (ih < 0x0C)) {
-			if (il < 8) {
-				if (ih == 0x8) A = add8(A, op2);
-				else if (ih == 0x9) A = sub8(A, op2);
-				else if (ih == 0xA) A =  and8(A, op2);
-				else if (ih == 0xB) A =  or8(A, op2);
-			} else {
-				if (ih == 0x8) A = adc8(A, op2);
-				else if (ih == 0x9) A = sbc8(A, op2);
-				else if (ih == 0xA) A =  xor8(A, op2);
-				else if (ih == 0xB) sub8(A, op2);
-			}
-		} else if (ih == 0xCB) {
-			instr = readByte(PC) & 0xFF;
-			ih =  ((instr >> 4) & 0x0F);
-			il =  (instr & 0x0F);
-			op2 = decodeOp2(il);
-			if (il < 8) {
-				if (ih == 0x0) op2 = rlc8(op2);
-				else if (ih == 0x1) op2 = rl8(op2);
-				else if (ih == 0x2) op2 = sl8(op2);
-				else if (ih == 0x3) op2 = swap8(op2);
-				else if (ih == 0x4) testBit(op2, 0);
-				else if (ih == 0x5) testBit(op2, 2);
-				else if (ih == 0x6) testBit(op2, 4);
-				else if (ih == 0x7) testBit(op2, 6);
-				else if (ih == 0x8) op2 =  setBit(op2, 0, false);
-				else if (ih == 0x9) op2 =  setBit(op2, 2, false);
-				else if (ih == 0xA) op2 =  setBit(op2, 4, false);
-				else if (ih == 0xB) op2 =  setBit(op2, 6, false);
-				else if (ih == 0xC) op2 =  setBit(op2, 0, true);
-				else if (ih == 0xD) op2 =  setBit(op2, 2, true);
-				else if (ih == 0xE) op2 =  setBit(op2, 4, true);
-				else if (ih == 0xF) op2 =  setBit(op2, 6, true);
-			} else {
-				if (ih == 0x0) op2 = rrc8(op2);
-				else if (ih == 0x1) op2 = rr8(op2);
-				else if (ih == 0x2) op2 = sr8(op2);
-				else if (ih == 0x3) op2 = srl8(op2);
-				else if (ih == 0x4) testBit(op2, 1);
-				else if (ih == 0x5) testBit(op2, 3);
-				else if (ih == 0x6) testBit(op2, 5);
-				else if (ih == 0x7) testBit(op2, 7);
-				else if (ih == 0x8) op2 =  setBit(op2, 1, false);
-				else if (ih == 0x9) op2 =  setBit(op2, 3, false);
-				else if (ih == 0xA) op2 =  setBit(op2, 5, false);
-				else if (ih == 0xB) op2 =  setBit(op2, 7, false);
-				else if (ih == 0xC) op2 =  setBit(op2, 1, true);
-				else if (ih == 0xD) op2 =  setBit(op2, 3, true);
-				else if (ih == 0xE) op2 =  setBit(op2, 5, true);
-				else if (ih == 0xF) op2 =  setBit(op2, 7, true);
-			}
-		} else if (instr == 0x00) { // NOP
-		} else if (instr == 0x10) { running = false;
-		} else if (instr == 0x20) { PC += 1 + (FZ? 0 : readByte(PC + 1));
-		} else if (instr == 0x30) { PC += 1 + (FC? 0 : readByte(PC + 1));
-		} else if (instr == 0x01) { setBC(readShort(++PC)); PC++;
-		} else if (instr == 0x11) { setDE(readShort(++PC)); PC++;
-		} else if (instr == 0x21) { setHL(readShort(++PC)); PC++;
-		} else if (instr == 0x31) { SP = readShort(++PC); PC++;
-		} else if (instr == 0x02) { writeShort(getBC(), A);
-		} else if (instr == 0x12) { writeShort(getDE(), A);
-		} else if (instr == 0x22) { writeShort(getHL(), A); setHL(inc16(getHL()));
-		} else if (instr == 0x32) { writeShort(getHL(), A); setHL(dec16(getHL()));
-		} else if (instr == 0x03) { setBC(inc16(getBC()));
-		} else if (instr == 0x13) { setDE(inc16safe(getDE()));
-		} else if (instr == 0x23) { setHL(inc16(getHL()));
-		} else if (instr == 0x33) { SP = inc16(SP);
-		} else if (instr == 0x04) { B = inc8(B);
-		} else if (instr == 0x14) { D = inc8(D);
-		} else if (instr == 0x24) { H = inc8(H);
-		} else if (instr == 0x34) { setHL(inc16(getHL()));
-		} else if (instr == 0x05) { B = dec8(B);
-		} else if (instr == 0x15) { D = dec8(D);
-		} else if (instr == 0x25) { H = dec8(H);
-		} else if (instr == 0x35) { setHL(dec16(getHL()));
-		} else if (instr == 0x06) { B = readByte(++PC);
-		} else if (instr == 0x16) { D = readByte(++PC);
-		} else if (instr == 0x26) { H = readByte(++PC);
-		} else if (instr == 0x36) { writeByte(getHL(), readByte(++PC));
-		} else if (instr == 0x07) { A = rlc8(A);
-		} else if (instr == 0x17) { A = rl8(A);
-		} else if (instr == 0x27) { System.out.println("DAA encountered. Should implement."); running = false;
-		} else if (instr == 0x37) { FC = true; FH = false; FN = false;
-		} else if (instr == 0x08) { writeShort(readShort(++PC), SP);  PC++;
-		} else if (instr == 0x18) { PC += 1 + readByte(++PC);
-		} else if (instr == 0x28) { PC += 1 + (FZ? readShort(PC + 1) : 0);
-		} else if (instr == 0x38) { PC += 1 + (FC? readShort(PC + 1) : 0);
-		} else if (instr == 0x09) { setHL(add16(getHL(), getBC()));
-		} else if (instr == 0x19) { setHL(add16(getHL(), getDE())); 
-		} else if (instr == 0x29) { setHL(add16(getHL(), getHL()));
-		} else if (instr == 0x39) { setHL(add16(getHL(), SP));
-		} else if (instr == 0x0A) { A = readByte(getBC());
-		} else if (instr == 0x1A) { A = readByte(getDE());
-		} else if (instr == 0x2A) {
-			A = readByte(getHL()); setHL(inc16safe(getHL()));
-		} else if (instr == 0x3A) { A = readByte(getHL()); setHL(dec16(getHL()));
-		} else if (instr == 0x0B) { setBC(dec16safe(getBC()));
-		} else if (instr == 0x1B) { setDE(dec16safe(getDE()));
-		} else if (instr == 0x2B) { setHL(dec16safe(getHL()));
-		} else if (instr == 0x3B) { SP = dec16(SP);
-		} else if (instr == 0x0C) { C = inc8(C);
-		} else if (instr == 0x1C) { E = inc8(E);
-		} else if (instr == 0x2C) { L = inc8(L);
-		} else if (instr == 0x3C) { A = inc8(A);
-		} else if (instr == 0x0D) { C = dec8(C);
-		} else if (instr == 0x1D) { E = dec8(E);
-		} else if (instr == 0x2D) { L = dec8(L);
-		} else if (instr == 0x3D) { A = dec8(A);
-		} else if (instr == 0x0E) { C = readByte(++PC);
-		} else if (instr == 0x1E) { E = readByte(++PC);
-		} else if (instr == 0x2E) { L = readByte(++PC);
-		} else if (instr == 0x3E) { A = readByte(++PC);
-		} else if (instr == 0x0F) { A = rrc8(A);
-		} else if (instr == 0x1F) { A = rr8(A);
-		} else if (instr == 0x2F) { A =  ~A; FH = true; FN = true;
-		} else if (instr == 0x3F) { FC = !FC; FN = false; FH = false;
-		} else if (instr == 0xC0) { if (!FZ) PC = pop();
-		} else if (instr == 0xD0) { if (!FC) PC = pop();
-		} else if (instr == 0xE0) { writeByte((0xFF00 + readByte(++PC)), A);
-		} else if (instr == 0xF0) { A = readByte((0xFF00 + readByte(++PC)));
-		} else if (instr == 0xC1) { setBC(pop());
-		} else if (instr == 0xD1) { setDE(pop());
-		} else if (instr == 0xE1) { setHL(pop());
-		} else if (instr == 0xF1) { setAF(pop());
-		} else if (instr == 0xC2) { PC = (FZ? PC + 2 : readShort(PC + 1));
-		} else if (instr == 0xD2) { PC = (FC? PC + 2 : readShort(PC + 1));
-		} else if (instr == 0xE2) { writeByte((0xFF00 + C), A);
-		} else if (instr == 0xF2) { A = readByte(0xFF00 + C);
-		} else if (instr == 0xC3) { PC = readShort(PC + 1) - 1;
-		} else if (instr == 0xD3) { illegalOpcode(ih, il);
-		} else if (instr == 0xE3) { illegalOpcode(ih, il);
-		} else if (instr == 0xF3) { interrupts_enabled = false;
-		} else if (instr == 0xC4) { PC = ((!FZ)? readShort(PC + 1) : PC + 2);
-		} else if (instr == 0xD4) { PC = ((!FC)? readShort(PC + 1) : PC + 2);
-		} else if (instr == 0xE4) { illegalOpcode(ih, il);
-		} else if (instr == 0xF4) { illegalOpcode(ih, il);
-		} else if (instr == 0xC5) { push(getBC());
-		} else if (instr == 0xD5) { push(getDE());
-		} else if (instr == 0xE5) { push(getHL());
-		} else if (instr == 0xF5) { push(getAF());
-		} else if (instr == 0xC6) { A = add8(A, readByte(++PC));
-		} else if (instr == 0xD6) { A = sub8(A, readByte(++PC));
-		} else if (instr == 0xE6) { A =  (A & readByte(++PC));
-		} else if (instr == 0xF6) { A =  (A | readByte(++PC));
-		} else if (instr == 0xC7) { push(PC + 1); PC = 0x00; interrupts_enabled = false;
-		} else if (instr == 0xD7) { push(PC + 1); PC = 0x10; interrupts_enabled = false;
-		} else if (instr == 0xE7) { push(PC + 1); PC = 0x20; interrupts_enabled = false;
-		} else if (instr == 0xF7) { push(PC + 1); PC = 0x30; interrupts_enabled = false;
-		} else if (instr == 0xC8) { if (FZ) PC = pop(); interrupts_enabled = false;
-		} else if (instr == 0xD8) { if (FC) PC = pop(); interrupts_enabled = false;
-		} else if (instr == 0xE8) { SP += readByte(++PC);
-		} else if (instr == 0xF8) { setHL((SP + readByte(++PC)));
-		} else if (instr == 0xC9) { PC = pop();
-		} else if (instr == 0xD9) { PC = pop(); interrupts_enabled = true;
-		} else if (instr == 0xE9) { PC = readShort(getHL());
-		} else if (instr == 0xF9) { SP = getHL();
-		} else if (instr == 0xCA) { PC = (FZ? readShort(PC + 1) : PC + 2);
-		} else if (instr == 0xDA) { PC = (FC? readShort(PC + 1) : PC + 2);
-		} else if (instr == 0xEA) { writeByte(readShort(PC + 1), A); PC += 2;
-		} else if (instr == 0xFA) { A = readByte(readShort(PC + 1));
-		} else if (instr == 0xDB) { illegalOpcode(ih, il);
-		} else if (instr == 0xEB) { illegalOpcode(ih, il);
-		} else if (instr == 0xFB) { interrupts_enabled = true;
-		} else if (instr == 0xCC) { if (FZ) { push(PC + 2); PC = readShort(PC + 1); } else { PC += 2; }
-		} else if (instr == 0xDC) { if (FC) { push(PC + 2); PC = readShort(PC + 1); } else { PC += 2; }
-		} else if (instr == 0xEC) { illegalOpcode(ih, il);
-		} else if (instr == 0xFC) { illegalOpcode(ih, il);
-		} else if (instr == 0xCD) { push(PC + 2); PC = readShort(PC + 1) - 1;
-		} else if (instr == 0xDD) { illegalOpcode(ih, il);
-		} else if (instr == 0xED) { illegalOpcode(ih, il);
-		} else if (instr == 0xFD) { illegalOpcode(ih, il);
-		} else if (instr == 0xCE) { A = adc8(A, readByte(++PC));
-		} else if (instr == 0xDE) { A = sbc8(A, readByte(++PC));
-		} else if (instr == 0xEE) { A ^= readByte(++PC);
-		} else if (instr == 0xFE) { sub8(A, readByte(++PC));
-		} else if (instr == 0xCF) { push(PC + 1); PC = 0x08; interrupts_enabled = false;
-		} else if (instr == 0xDF) { push(PC + 1); PC = 0x18; interrupts_enabled = false;
-		} else if (instr == 0xEF) { push(PC + 1); PC = 0x28; interrupts_enabled = false;
-		} else if (instr == 0xFF) { push(PC + 1); PC = 0x38; interrupts_enabled = false;
-		} else {
-			System.out.println("Unhandled opcode! " +
-					Integer.toHexString(ih) + "" +
-					Integer.toHexString(il));
+		case 0x40, 0x41, 0x42, 0x43, 0x44, 0x45, 0x46, 0x47: B = decodeOp2(instr); break;
+		case 0x48, 0x49, 0x4A, 0x4B, 0x4C, 0x4D, 0x4E, 0x4F: C = decodeOp2(instr); break;
+		case 0x50, 0x51, 0x52, 0x53, 0x54, 0x55, 0x56, 0x57: D = decodeOp2(instr); break;
+		case 0x58, 0x59, 0x5A, 0x5B, 0x5C, 0x5D, 0x5E, 0x5F: E = decodeOp2(instr); break;
+		case 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67: H = decodeOp2(instr); break;
+		case 0x68, 0x69, 0x6A, 0x6B, 0x6C, 0x6D, 0x6E, 0x6F: L = decodeOp2(instr); break;
+		case 0x70, 0x71, 0x72, 0x73, 0x74, 0x75, 0x77: writeByte(getHL(), decodeOp2(instr)); break;
+		case 0x76: halt(); break;
+		case 0x78, 0x79, 0x7A, 0x7B, 0x7C, 0x7D, 0x7E, 0x7F: A = decodeOp2(instr); break;
+		
+		// ADD/ADC/SUB/SBC/AND/XOR/OR/CP instructions
+		case 0x80, 0x81, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87: A = add8(A, decodeOp2(instr)); break;
+		case 0x88, 0x89, 0x8A, 0x8B, 0x8C, 0x8D, 0x8E, 0x8F: A = adc8(A, decodeOp2(instr)); break;
+		case 0x90, 0x91, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97: A = sub8(A, decodeOp2(instr)); break;
+		case 0x98, 0x99, 0x9A, 0x9B, 0x9C, 0x9D, 0x9E, 0x9F: A = sbc8(A, decodeOp2(instr)); break;
+		case 0xA0, 0xA1, 0xA2, 0xA3, 0xA4, 0xA5, 0xA6, 0xA7: A =  and8(A, decodeOp2(instr)); break;
+		case 0xA8, 0xA9, 0xAA, 0xAB, 0xAC, 0xAD, 0xAE, 0xAF: A =  xor8(A, decodeOp2(instr)); break;
+		case 0xB0, 0xB1, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7: A =  or8(A, decodeOp2(instr)); break;
+		case 0xB8, 0xB9, 0xBA, 0xBB, 0xBC, 0xBD, 0xBE, 0xBF: sub8(A, decodeOp2(instr)); break;
+		
+		case 0xC0: if (!zf()) { t = 20; PC = pop(); } break;
+		case 0xC1: setBC(pop()); break;
+		case 0xC2: if (!zf()) t = 16; PC = (zf()? PC + 2 : readShort(PC + 1)); break;
+		case 0xC3: PC = readShort(PC + 1) - 1; break;
+		case 0xC4: if (!zf()) t = 24; PC = ((!zf())? readShort(PC + 1) : PC + 2); break;
+		case 0xC5: push(getBC()); break;
+		case 0xC6: A = add8(A, readByte(++PC)); break;
+		case 0xC7: push(PC + 1); PC = 0x00; interrupts_enabled = false; break;
+		case 0xC8: if (zf()) { t = 20; PC = pop(); } interrupts_enabled = false; break;
+		case 0xC9: PC = pop(); break;
+		case 0xCA: if (zf()) t = 16; PC = (zf()? readShort(PC + 1) : PC + 2); break;
+		case 0xCB: t = stepCB(); break;
+		case 0xCC: if (zf()) { t = 24; push(PC + 2); PC = readShort(PC + 1); } else { PC += 2; } break;
+		case 0xCD: push(PC + 2); PC = readShort(PC + 1) - 1; break;
+		case 0xCE: A = adc8(A, readByte(++PC)); break;
+		case 0xCF: push(PC + 1); PC = 0x08; interrupts_enabled = false; break;
+		
+		case 0xD0: if (!FC) { t = 20; PC = pop(); } break;
+		case 0xD1: setDE(pop()); break;
+		case 0xD2: if (!FC) t = 16; PC = (FC? PC + 2 : readShort(PC + 1)); break;
+		case 0xD4: if (!FC) t = 24; PC = ((!FC)? readShort(PC + 1) : PC + 2); break;
+		case 0xD5: push(getDE()); break;
+		case 0xD6: A = sub8(A, readByte(++PC)); break;
+		case 0xD7: push(PC + 1); PC = 0x10; interrupts_enabled = false; break;
+		case 0xD8: if (FC) { t = 20; PC = pop(); } interrupts_enabled = false; break;
+		case 0xD9: PC = pop(); interrupts_enabled = true; break;
+		case 0xDA: if (FC) t = 16; PC = (FC? readShort(PC + 1) : PC + 2); break;
+		case 0xDC: if (FC) { t = 24; push(PC + 2); PC = readShort(PC + 1); } else { PC += 2; } break;
+		case 0xDE: A = sbc8(A, readByte(++PC)); break;
+		case 0xDF: push(PC + 1); PC = 0x18; interrupts_enabled = false; break;
+		
+		case 0xE0: writeByte((0xFF00 + readByte(++PC)), A); break;
+		case 0xE1: setHL(pop()); break;
+		case 0xE2: writeByte((0xFF00 + C), A); break;
+		case 0xE5: push(getHL()); break;
+		case 0xE6: A =  (A & readByte(++PC)); break;
+		case 0xE7: push(PC + 1); PC = 0x20; interrupts_enabled = false; break;
+		case 0xE8: SP = (SP + (byte) readByte(++PC)) & 0xFFFF; break;
+		case 0xE9: PC = readShort(getHL()); break;
+		case 0xEA: writeByte(readShort(PC + 1), A); PC += 2; break;
+		case 0xEE: A ^= readByte(++PC); break;
+		case 0xEF: push(PC + 1); PC = 0x28; interrupts_enabled = false; break;
+		
+		case 0xF0: A = readByte((0xFF00 + readByte(++PC))); break;
+		case 0xF1: setAF(pop()); break;
+		case 0xF2: A = readByte(0xFF00 + C); break;
+		case 0xF3: interrupts_enabled = eiDelay = false; break;
+		case 0xF5: push(getAF()); break;
+		case 0xF6: A =  (A | readByte(++PC)); break;
+		case 0xF7: push(PC + 1); PC = 0x30; interrupts_enabled = false; break;
+		case 0xF8: setHL((SP + (byte) readByte(++PC))); break;
+		case 0xF9: SP = getHL(); break;
+		case 0xFA: A = readByte(readShort(PC + 1)); break;
+		case 0xFB: eiDelay = !interrupts_enabled; break;
+		case 0xFE: sub8(A, readByte(++PC)); break;
+		case 0xFF: push(PC + 1); PC = 0x38; interrupts_enabled = false; break;
+		
+		case 0xD3, 0xDB, 0xDD, 0xE3, 0xE4, 0xEB, 0xEC, 0xED, 0xF4, 0xFC, 0xFD:
+		default:
+			illegalOpcode(instr);
 		}
-		AF = getAF();
-		BC = getBC();
-		DE = getDE();
-		HL = getHL();
-		PC++;
+		PC = (PC + 1) & 0xFFFF;
+		
+		M = t >> 2;
+		T = t;
+		return t;
 	}
 	
-	private void illegalOpcode(int ih, int il) {
+	// CB-prefixed instructions, dispatched through a second dense switch.
+	// Returns the clock cycles for the whole instruction, prefix included.
+	private int stepCB() {
+		int instr = readByte(++PC) & 0xFF;
+		int op2 = decodeOp2(instr);
+		switch (instr) {
+		case 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07: setOp2(instr, rlc8(op2)); break;
+		case 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F: setOp2(instr, rrc8(op2)); break;
+		case 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17: setOp2(instr, rl8(op2)); break;
+		case 0x18, 0x19, 0x1A, 0x1B, 0x1C, 0x1D, 0x1E, 0x1F: setOp2(instr, rr8(op2)); break;
+		case 0x20, 0x21, 0x22, 0x23, 0x24, 0x25, 0x26, 0x27: setOp2(instr, sl8(op2)); break;
+		case 0x28, 0x29, 0x2A, 0x2B, 0x2C, 0x2D, 0x2E, 0x2F: setOp2(instr, sr8(op2)); break;
+		case 0x30, 0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37: setOp2(instr, swap8(op2)); break;
+		case 0x38, 0x39, 0x3A, 0x3B, 0x3C, 0x3D, 0x3E, 0x3F: setOp2(instr, srl8(op2)); break;
+		case 0x40, 0x41, 0x42, 0x43, 0x44, 0x45, 0x46, 0x47: testBit(op2, 0); break;
+		case 0x48, 0x49, 0x4A, 0x4B, 0x4C, 0x4D, 0x4E, 0x4F: testBit(op2, 1); break;
+		case 0x50, 0x51, 0x52, 0x53, 0x54, 0x55, 0x56, 0x57: testBit(op2, 2); break;
+		case 0x58, 0x59, 0x5A, 0x5B, 0x5C, 0x5D, 0x5E, 0x5F: testBit(op2, 3); break;
+		case 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67: testBit(op2, 4); break;
+		case 0x68, 0x69, 0x6A, 0x6B, 0x6C, 0x6D, 0x6E, 0x6F: testBit(op2, 5); break;
+		case 0x70, 0x71, 0x72, 0x73, 0x74, 0x75, 0x76, 0x77: testBit(op2, 6); break;
+		case 0x78, 0x79, 0x7A, 0x7B, 0x7C, 0x7D, 0x7E, 0x7F: testBit(op2, 7); break;
+		case 0x80, 0x81, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87: setOp2(instr, setBit(op2, 0, false)); break;
+		case 0x88, 0x89, 0x8A, 0x8B, 0x8C, 0x8D, 0x8E, 0x8F: setOp2(instr, setBit(op2, 1, false)); break;
+		case 0x90, 0x91, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97: setOp2(instr, setBit(op2, 2, false)); break;
+		case 0x98, 0x99, 0x9A, 0x9B, 0x9C, 0x9D, 0x9E, 0x9F: setOp2(instr, setBit(op2, 3, false)); break;
+		case 0xA0, 0xA1, 0xA2, 0xA3, 0xA4, 0xA5, 0xA6, 0xA7: setOp2(instr, setBit(op2, 4, false)); break;
+		case 0xA8, 0xA9, 0xAA, 0xAB, 0xAC, 0xAD, 0xAE, 0xAF: setOp2(instr, setBit(op2, 5, false)); break;
+		case 0xB0, 0xB1, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7: setOp2(instr, setBit(op2, 6, false)); break;
+		case 0xB8, 0xB9, 0xBA, 0xBB, 0xBC, 0xBD, 0xBE, 0xBF: setOp2(instr, setBit(op2, 7, false)); break;
+		case 0xC0, 0xC1, 0xC2, 0xC3, 0xC4, 0xC5, 0xC6, 0xC7: setOp2(instr, setBit(op2, 0, true)); break;
+		case 0xC8, 0xC9, 0xCA, 0xCB, 0xCC, 0xCD, 0xCE, 0xCF: setOp2(instr, setBit(op2, 1, true)); break;
+		case 0xD0, 0xD1, 0xD2, 0xD3, 0xD4, 0xD5, 0xD6, 0xD7: setOp2(instr, setBit(op2, 2, true)); break;
+		case 0xD8, 0xD9, 0xDA, 0xDB, 0xDC, 0xDD, 0xDE, 0xDF: setOp2(instr, setBit(op2, 3, true)); break;
+		case 0xE0, 0xE1, 0xE2, 0xE3, 0xE4, 0xE5, 0xE6, 0xE7: setOp2(instr, setBit(op2, 4, true)); break;
+		case 0xE8, 0xE9, 0xEA, 0xEB, 0xEC, 0xED, 0xEE, 0xEF: setOp2(instr, setBit(op2, 5, true)); break;
+		case 0xF0, 0xF1, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7: setOp2(instr, setBit(op2, 6, true)); break;
+		case 0xF8, 0xF9, 0xFA, 0xFB, 0xFC, 0xFD, 0xFE, 0xFF: setOp2(instr, setBit(op2, 7, true)); break;
+		}
+		return CB_CYCLES[instr];
+	}
+	
+	private void illegalOpcode(int instr) {
 		System.out.println("Illegal opcode! " +
-				Integer.toHexString(ih) + "" +
-				Integer.toHexString(il));
+				Integer.toHexString(instr >> 4) + "" +
+				Integer.toHexString(instr & 0x0F));
 	}
 
-	private int or8(int a2, int op2) {
+	int or8(int a2, int op2) {
 		int res = (a2 | op2) & 0xFF;
-		FZ = (res == 0);
 		FC = false;
-		FN = false;
-		FH = false;
+		flagOp = FLAGS_LOGIC;
+		flagB = 0;
+		flagR = res;
 		return res;
 	}
 
-	private int xor8(int a2, int op2) {
+	int xor8(int a2, int op2) {
 		int res = (a2 ^ op2) & 0xFF;
-		FZ = (res == 0);
 		FC = false;
-		FN = false;
-		FH = false;
+		flagOp = FLAGS_LOGIC;
+		flagB = 0;
+		flagR = res;
 		return res;
 	}
 
-	private int and8(int a2, int op2) {
+	int and8(int a2, int op2) {
 		int res = (a2 & op2) & 0xFF;
-		FZ = (res == 0);
 		FC = false;
-		FN = false;
-		FH = true;
+		flagOp = FLAGS_LOGIC;
+		flagB = 1;
+		flagR = res;
 		return res;
 	}
 
 	private int pop() {
-		return  ((readByte(SP++) << 8) | readByte(SP++));
+		int value = (readByte(SP) << 8) | readByte(SP + 1);
+		SP = (SP + 2) & 0xFFFF;
+		return value;
 	}
 
 	private void push(int i) {
-		writeByte(--SP, lByte(i));
-		writeByte(--SP, hByte(i));
+		SP = (SP - 2) & 0xFFFF;
+		writeByte(SP + 1, lByte(i));
+		writeByte(SP, hByte(i));
+	}
+
+	// With interrupts off and one already pending, real hardware skips the
+	// HALT and then reads the next opcode twice. Only the skip is copied.
+	private void halt() {
+		if (interrupts_enabled || interrupts.getPending() == 0) halted = true;
 	}
 
 	private int srl8(int b) {
@@ -390,101 +518,103 @@ public class CPU {
 	}
 
 	private void testBit(int b, int n) {
+		flagOp = FLAGS_READY;
 		FZ = getBit(b, n);
 		FN = false;
 		FH = false;
 	}
 
-	private int rr8(int a) {
+	int rr8(int a) {
 		int bit_7 = FC? 0x80 : 0;
 		FC = getBit(a, 0);
 		a = (a >>> 1) | bit_7;
-		FN = false;
-		FH = false;
-		FZ = (a == 0);
+		flagOp = FLAGS_ROTATE;
+		flagR = a;
 		return a;
 	}
 
-	private int rl8(int a) {
+	int rl8(int a) {
 		int bit_0 = FC? 1 : 0;
 		FC = getBit(a, 7);
 		a = ((a << 1) & 0xFF) | bit_0;
-		FZ = (a == 0);
-		FN = false;
-		FH = false;
+		flagOp = FLAGS_ROTATE;
+		flagR = a;
 		return a;
 	}
 
-	private int rrc8(int a) {
+	int rrc8(int a) {
 		FC = getBit(a, 0);
 		a = ((a >>> 1) & 0xFF) | (a << 7);
-		FZ = (a == 0);
-		FN = false;
-		FH = false;
-		return a;
+		flagOp = FLAGS_ROTATE;
+		flagR = a;
+		return a & 0xFF;
 	}
 
-	private int rlc8(int a) {
+	int rlc8(int a) {
 		FC = getBit(a, 7);
 		a = ((a << 1) & 0xFF) | (a >>> 7);
-		FZ = (a == 0);
-		FN = false;
-		FH = false;
+		flagOp = FLAGS_ROTATE;
+		flagR = a;
 		return a;
 	}
 
-	private int add8(int a, int b) {
+	int add8(int a, int b) {
 		int sum = a + b;
 		FC = getBit(sum, 8);
-		FN = false;
-		FZ = (sum == 0);
-		FH = (getBit(sum, 3) && getBit(b, 3));
-		return sum;
+		flagOp = FLAGS_ADD8;
+		flagB = b;
+		flagR = sum;
+		return sum & 0xFF;
 	}
 
-	private int adc8(int a, int b) {
+	int adc8(int a, int b) {
 		int sum = a + b;
 		if (FC) sum++;
 		FC = getBit(sum, 8);
-		FN = false;
-		FZ = (sum == 0);
-		FH = (getBit(sum, 3) && getBit(b, 3));
-		return sum;
+		flagOp = FLAGS_ADD8;
+		flagB = b;
+		flagR = sum;
+		return sum & 0xFF;
 	}
 
-	private int add16(int a, int b) {
+	// Leaves Z alone, so any pending Z is settled first
+	int add16(int a, int b) {
 		int sum = a + b;
+		flushFlags();
 		FC = getBit(sum, 16);
 		FN = false;
 		FH = (getBit(sum, 11) && getBit(b, 11));
 		return sum;
 	}
 	
-	private int sub8(int a, int b) {
+	int sub8(int a, int b) {
 		int dif = a - b;
 		FC = (dif < 0);
-		FZ = (dif == 0);
-		FN = true;
-		FH = (!getBit(a, 3) && getBit(b, 3));
-		return dif;
+		flagOp = FLAGS_SUB8;
+		flagA = a;
+		flagB = b;
+		flagR = dif;
+		return dif & 0xFF;
 	}
 	
-	private int sbc8(int a, int b) {
+	int sbc8(int a, int b) {
 		int dif = a - b;
 		if (FC) dif--;
 		FC = (dif < 0);
-		FZ = (dif == 0);
-		FN = true;
-		FH = (!getBit(a, 3) && getBit(b, 3));
-		return dif;
+		flagOp = FLAGS_SUB8;
+		flagA = a;
+		flagB = b;
+		flagR = dif;
+		return dif & 0xFF;
 	}
 	
 	private int sub16(int a, int b) {
 		int dif = a - b;
 		FC = (dif < 0);
-		FZ = (dif == 0);
-		FN = true;
-		FH = (!getBit(a, 11) && getBit(b, 11));
+		flagOp = FLAGS_SUB16;
+		flagA = a;
+		flagB = b;
+		flagR = dif;
 		return dif;
 	}
 	
@@ -492,44 +622,99 @@ public class CPU {
 		int dif = a - b;
 		if (FC) dif--;
 		FC = (dif < 0);
-		FZ = (dif == 0);
-		FN = true;
-		FH = (!getBit(a, 11) && getBit(b, 11));
+		flagOp = FLAGS_SUB16;
+		flagA = a;
+		flagB = b;
+		flagR = dif;
 		return dif;
 	}
 	
+	// Bring Z, H and N up to date with the last recorded operation
+	void flushFlags() {
+		int a = flagA, b = flagB, r = flagR;
+		switch (flagOp) {
+		case FLAGS_READY:
+			return;
+		case FLAGS_ADD8:
+			FN = false;
+			FZ = (r == 0);
+			FH = (getBit(r, 3) && getBit(b, 3));
+			break;
+		case FLAGS_SUB8:
+			FZ = (r == 0);
+			FN = true;
+			FH = (!getBit(a, 3) && getBit(b, 3));
+			break;
+		case FLAGS_SUB16:
+			FZ = (r == 0);
+			FN = true;
+			FH = (!getBit(a, 11) && getBit(b, 11));
+			break;
+		case FLAGS_LOGIC:
+			FZ = (r == 0);
+			FN = false;
+			FH = (b != 0);
+			break;
+		case FLAGS_ROTATE:
+			FZ = (r == 0);
+			FN = false;
+			FH = false;
+			break;
+		case FLAGS_INC8:
+			FH = ((a & 0xF) == 0xF);
+			FZ = (r == 0);
+			FN = false;
+			break;
+		case FLAGS_DEC8:
+			FH = ((a & 0xF) == 0x0);
+			FZ = (r == 0);
+			FN = true;
+			break;
+		}
+		flagOp = FLAGS_READY;
+	}
 	
+	private boolean zf() {
+		if (flagOp != FLAGS_READY) flushFlags();
+		return FZ;
+	}
 	
-
 	// Set/get flags
 	private boolean getBit(int data, int bit) { return ((1 << bit) & data & 0xFF) != 0; }
-	private void writeByte(int addr, int data) { mem[addr & 0xFFFF] = data & 0xFF; }
-	private void writeShort(int addr, int data) {
+	void writeByte(int addr, int data) { mmu.writeByte(addr, data); }
+	void writeShort(int addr, int data) {
 		writeByte(addr, lByte(data));
 		writeByte(addr + 1, hByte(data));
 	}
-	private int readByte(int addr) { return mem[addr]; }
-	private int readShort(int addr) { return twoBytesToShort(readByte(addr + 1), readByte(addr)); }
+	int readByte(int addr) { return mmu.readByte(addr); }
+	int readShort(int addr) { return twoBytesToShort(readByte(addr + 1), readByte(addr)); }
 	private int getM() { return M; }
 	private int getT() { return T; }
 	private void setM(int m) { M = m; }
 	private void setT(int t) { T = t; }
-	private int getAF() { return twoBytesToShort(A, getF()); }
-	private int getBC() { return twoBytesToShort(B, C); }
-	private int getDE() { return twoBytesToShort(D, E); }
-	private int getHL() { return twoBytesToShort(H, L); }
-	private void setAF(int aF) { A = hByte(aF); setF(lByte(aF)); }
-	private void setBC(int bc) { B = hByte(bc); C = lByte(bc); }
-	private void setDE(int dE) { D = hByte(dE); E = lByte(dE); }
-	private void setHL(int hL) { H = hByte(hL); L = lByte(hL); }
+	int getAF() { return (A << 8) | getF(); }
+	int getBC() { return (B << 8) | C; }
+	int getDE() { return (D << 8) | E; }
+	int getHL() { return (H << 8) | L; }
+	
+	// A-L and the flags in one value, to tell whether a loop left them alone
+	long getRegisterState() {
+		return ((long) getAF() << 48) | ((long) getBC() << 32) | ((long) getDE() << 16) | getHL();
+	}
+	void setAF(int aF) { A = hByte(aF); setF(lByte(aF)); }
+	void setBC(int bc) { B = hByte(bc); C = lByte(bc); }
+	void setDE(int dE) { D = hByte(dE); E = lByte(dE); }
+	void setHL(int hL) { H = hByte(hL); L = lByte(hL); }
 	private void setF(int i) {
 		i &= 0xFF;
 		FZ = ((i & 0x80) != 0);
 		FC = ((i & 0x40) != 0);
 		FH = ((i & 0x20) != 0);
 		FN = ((i & 0x10) != 0);
+		flagOp = FLAGS_READY;
 	}
 	private int getF() {
+		flushFlags();
 		return ((FZ)? 0x80 : 0) | ((FC)? 0x40 : 0) | ((FH)? 0x20 : 0) | ((FN)? 0x10 : 0);
 	}
 	private int twoBytesToShort(int H, int L) { return (((H & 0xFF) << 8) | (L & 0xFF)); }
@@ -550,19 +735,29 @@ public class CPU {
 		else if (op2l == 6) return readByte(getHL());
 		else return A;
 	}
-	private int inc8(int c) {
-		FH = ((c & 0xF) == 0xF);
-		c++;
-		FZ = ((c & 0xFF) == 0);
-		FN = false;
-		return c & 0xFF;
-	}
-	private int dec8(int c) {
-		FH = ((c & 0xF) == 0x0);
-		c--;
-		FZ = ((c & 0xFF) == 0);
-		FN = true;
-		return c & 0xFF;
+	private void setOp2(int b, int value) {
+		int op2l = b & 0x7;
+		value &= 0xFF;
+		if (op2l == 0) B = value;
+		else if (op2l == 1) C = value;
+		else if (op2l == 2) D = value;
+		else if (op2l == 3) E = value;
+		else if (op2l == 4) H = value;
+		else if (op2l == 5) L = value;
+		else if (op2l == 6) writeByte(getHL(), value);
+		else A = value;
+	}
+	int inc8(int c) {
+		flagOp = FLAGS_INC8;
+		flagA = c;
+		flagR = (c + 1) & 0xFF;
+		return flagR;
+	}
+	int dec8(int c) {
+		flagOp = FLAGS_DEC8;
+		flagA = c;
+		flagR = (c - 1) & 0xFF;
+		return flagR;
 	}
 	private int inc16(int d) { return add16(d, 1); }
 	private int dec16(int d) { return sub16(d, 1); }
@@ -570,19 +765,48 @@ public class CPU {
 	private int dec16safe(int d) { return d - 1; }
 	private int swap8(int b) { return  ((b << 3) | (b >>> 3)); }
 
+	public int getPC() { return PC; }
+	public int getSP() { return SP; }
 	public boolean isRunning() { return running; }
-	public void setRunning(boolean running) { this.running = running; }
+	public boolean isHalted() { return halted; }
+	public boolean getInterruptsEnabled() { return interrupts_enabled; }
+	public Interrupts getInterrupts() { return interrupts; }
+	
+	// Save state: registers, flags, and the interrupt/running bits
+	void saveState(ByteBuffer buf) {
+		buf.put((byte) A).put((byte) getF());
+		buf.put((byte) B).put((byte) C);
+		buf.put((byte) D).put((byte) E);
+		buf.put((byte) H).put((byte) L);
+		buf.putShort((short) SP).putShort((short) PC);
+		buf.put((byte) ((interrupts_enabled ? 1 : 0) | (running ? 2 : 0)
+				| (halted ? 4 : 0) | (stopped ? 8 : 0) | (eiDelay ? 16 : 0)));
+		buf.put((byte) T);
+	}
 	
-	private void maskRegs() {
-		A &= 0xFF;
-		B &= 0xFF;
-		C &= 0xFF;
-		D &= 0xFF;
-		E &= 0xFF;
-		setF(getF() & 0xFF);
-		H &= 0xFF;
-		L &= 0xFF;
-		SP &= 0xFFFF;
-		PC &= 0xFFFF;
+	void loadState(ByteBuffer buf) {
+		A = buf.get() & 0xFF;
+		setF(buf.get());
+		B = buf.get() & 0xFF;
+		C = buf.get() & 0xFF;
+		D = buf.get() & 0xFF;
+		E = buf.get() & 0xFF;
+		H = buf.get() & 0xFF;
+		L = buf.get() & 0xFF;
+		SP = buf.getShort() & 0xFFFF;
+		PC = buf.getShort() & 0xFFFF;
+		int bits = buf.get();
+		interrupts_enabled = (bits & 1) != 0;
+		running = (bits & 2) != 0;
+		halted = (bits & 4) != 0;
+		stopped = (bits & 8) != 0;
+		eiDelay = (bits & 16) != 0;
+		T = buf.get() & 0xFF;
+		M = T >> 2;
 	}
+	public void setRunning(boolean running) { this.running = running; }
+	public MMU getMMU() { return mmu; }
+	public TraceSink getTraceSink() { return traceSink; }
+	public void setTraceSink(TraceSink traceSink) { this.traceSink = traceSink; }
+	
 }
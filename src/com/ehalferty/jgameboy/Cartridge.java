@@ -0,0 +1,196 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A ROM image plus the external RAM described by its header.
+//
+// Cartridges opened from a file are memory-mapped rather than read in. A
+// 16 KB bank is only copied out of the mapping the first time the MBC
+// selects it, so opening an 8 MB ROM costs the same as a 32 KB one. If the
+// cartridge has a battery, its RAM is backed by a mapped .sav file next to
+// the ROM and every write goes through to it, so saves survive without an
+// explicit flush.
+public class Cartridge implements Closeable {
+	
+	public static final int ROM_BANK_SIZE = 0x4000;
+	public static final int RAM_BANK_SIZE = 0x2000;
+	
+	// Header fields
+	public static final int TYPE = 0x147;
+	public static final int RAM_SIZE = 0x149;
+	
+	// External RAM sizes for header values 0-5
+	private static final int [] RAM_SIZES = { 0, 0x800, 0x2000, 0x8000, 0x20000, 0x10000 };
+	
+	// Either the whole ROM on the heap, or a mapping plus lazily copied banks
+	private final byte [] rom;
+	private final ByteBuffer romBuffer;
+	private final byte [][] romBankCache;
+	
+	private final byte [] ram;
+	private final MappedByteBuffer saveBuffer;
+	private final int romBanks;
+	private final int type;
+	
+	public Cartridge(byte [] romBytes) {
+		// Pad to whole banks, and to at least the 32 KB the CPU can see
+		int banks = bankCount(romBytes.length);
+		if (banks * ROM_BANK_SIZE == romBytes.length) {
+			rom = romBytes;
+		} else {
+			rom = new byte[banks * ROM_BANK_SIZE];
+			System.arraycopy(romBytes, 0, rom, 0, romBytes.length);
+		}
+		romBuffer = null;
+		romBankCache = null;
+		romBanks = banks;
+		type = rom[TYPE] & 0xFF;
+		ram = new byte[ramSize(rom[RAM_SIZE])];
+		saveBuffer = null;
+	}
+	
+	private Cartridge(ByteBuffer romBuffer, Path saveFile) throws IOException {
+		this.romBuffer = romBuffer;
+		rom = null;
+		romBanks = bankCount(romBuffer.capacity());
+		romBankCache = new byte[romBanks][];
+		type = headerByte(TYPE);
+		ram = new byte[ramSize(headerByte(RAM_SIZE))];
+		
+		if (hasBattery() && ram.length > 0) {
+			try (FileChannel ch = FileChannel.open(saveFile, StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				saveBuffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, ram.length);
+			}
+			saveBuffer.get(0, ram);
+		} else {
+			saveBuffer = null;
+		}
+	}
+	
+	// Map a ROM file. Battery RAM is kept in the same path with a .sav extension.
+	public static Cartridge open(Path romFile) throws IOException {
+		ByteBuffer buf;
+		try (FileChannel ch = FileChannel.open(romFile, StandardOpenOption.READ)) {
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+		return new Cartridge(buf, saveFileFor(romFile));
+	}
+	
+	public static Path saveFileFor(Path romFile) {
+		String name = romFile.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) name = name.substring(0, dot);
+		return romFile.resolveSibling(name + ".sav");
+	}
+	
+	private static int bankCount(int romLength) {
+		return Math.max(2, (romLength + ROM_BANK_SIZE - 1) / ROM_BANK_SIZE);
+	}
+	
+	private static int ramSize(int code) {
+		int c = code & 0xFF;
+		return (c < RAM_SIZES.length) ? RAM_SIZES[c] : 0;
+	}
+	
+	private int headerByte(int addr) {
+		return (addr < romBuffer.capacity()) ? romBuffer.get(addr) & 0xFF : 0;
+	}
+	
+	// The array holding a ROM bank, and the offset of the bank within it
+	public byte [] getRomBankData(int bank) {
+		if (rom != null) return rom;
+		byte [] data = romBankCache[bank];
+		if (data == null) {
+			data = new byte[ROM_BANK_SIZE];
+			int start = bank * ROM_BANK_SIZE;
+			// Past the end of a short file the bank reads as zeros, as the
+			// byte [] constructor's padding does
+			int length = Math.max(0, Math.min(ROM_BANK_SIZE, romBuffer.capacity() - start));
+			if (length > 0) romBuffer.get(start, data, 0, length);
+			romBankCache[bank] = data;
+		}
+		return data;
+	}
+	
+	public int getRomBankOffset(int bank) {
+		return (rom != null) ? bank * ROM_BANK_SIZE : 0;
+	}
+	
+	// Cartridge RAM that must reach the save file is written through here
+	public boolean isPersistent() { return saveBuffer != null; }
+	
+	public void writeRam(int offset, int data) {
+		ram[offset] = (byte) data;
+		saveBuffer.put(offset, (byte) data);
+	}
+	
+	// Replace the whole of RAM from a save state. Rewind and movies restore
+	// states all the time, so this leaves the save file alone: only the
+	// game's own writes reach it.
+	void loadRam(ByteBuffer buf) {
+		buf.get(ram);
+	}
+	
+	// Ask the OS to write the save file back now rather than eventually
+	@Override
+	public void close() {
+		if (saveBuffer != null) saveBuffer.force();
+	}
+	
+	// Build the memory bank controller named by the header
+	public MBC createMBC(MMU mmu) {
+		switch (type) {
+		case 0x00: case 0x08: case 0x09:
+			return new MBC(mmu, this);
+		case 0x01: case 0x02: case 0x03:
+			return new MBC1(mmu, this);
+		case 0x0F: case 0x10: case 0x11: case 0x12: case 0x13:
+			return new MBC3(mmu, this);
+		case 0x19: case 0x1A: case 0x1B: case 0x1C: case 0x1D: case 0x1E:
+			return new MBC5(mmu, this);
+		default:
+			System.out.println("Unsupported cartridge type " + Integer.toHexString(type) +
+					", running without bank switching");
+			return new MBC(mmu, this);
+		}
+	}
+	
+	public boolean hasBattery() {
+		switch (type) {
+		case 0x03: case 0x09: case 0x0F: case 0x10: case 0x13: case 0x1B: case 0x1E:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	public byte [] getRam() { return ram; }
+	public int getRomBanks() { return romBanks; }
+	public int getRamBanks() { return (ram.length + RAM_BANK_SIZE - 1) / RAM_BANK_SIZE; }
+	public int getType() { return type; }
+}
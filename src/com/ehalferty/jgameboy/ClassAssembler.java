@@ -0,0 +1,236 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Just enough of a class file writer for the JIT: one final class with a
+// no-argument constructor and a single method, built from raw opcodes.
+// Classes are written as version 49 (Java 5), which the JVM verifies by
+// type inference, so branches need no stack map frames.
+final class ClassAssembler {
+	
+	// Opcodes used by the JIT
+	static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14;
+	static final int ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, ALOAD_0 = 0x2A, ISTORE = 0x36, LSTORE = 0x37;
+	static final int IADD = 0x60, LADD = 0x61, ISUB = 0x64, ISHL = 0x78, ISHR = 0x7A, IUSHR = 0x7C;
+	static final int IAND = 0x7E, IOR = 0x80, IXOR = 0x82;
+	static final int LCMP = 0x94, IFEQ = 0x99, IFLT = 0x9B;
+	static final int IRETURN = 0xAC, RETURN = 0xB1;
+	static final int GETFIELD = 0xB4, PUTFIELD = 0xB5;
+	static final int INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7;
+	
+	private static final int MAX_STACK = 16;
+	
+	// Constant pool, deduplicated by a key made from each entry's contents
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final Map<String, Integer> poolIndex = new HashMap<>();
+	private int poolCount = 1;
+	
+	// Code of the method being written
+	private byte [] code = new byte[1024];
+	private int length = 0;
+	
+	private final int thisClass;
+	private final int superClass;
+	private final int iface;
+	
+	ClassAssembler(String name, String interfaceName) {
+		thisClass = classRef(name);
+		superClass = classRef("java/lang/Object");
+		iface = classRef(interfaceName);
+	}
+	
+	// Constant pool
+	
+	private int utf8(String s) {
+		return entry("U" + s, 1, () -> { poolOut.writeByte(1); poolOut.writeUTF(s); });
+	}
+	
+	int classRef(String name) {
+		int n = utf8(name);
+		return entry("C" + name, 1, () -> { poolOut.writeByte(7); poolOut.writeShort(n); });
+	}
+	
+	int longConstant(long value) {
+		return entry("J" + value, 2, () -> { poolOut.writeByte(5); poolOut.writeLong(value); });
+	}
+	
+	int intConstant(int value) {
+		return entry("I" + value, 1, () -> { poolOut.writeByte(3); poolOut.writeInt(value); });
+	}
+	
+	int field(String owner, String name, String desc) {
+		return member(9, owner, name, desc);
+	}
+	
+	int method(String owner, String name, String desc) {
+		return member(10, owner, name, desc);
+	}
+	
+	private int member(int tag, String owner, String name, String desc) {
+		int c = classRef(owner);
+		int n = utf8(name);
+		int d = utf8(desc);
+		int nt = entry("T" + name + " " + desc, 1, () -> {
+			poolOut.writeByte(12); poolOut.writeShort(n); poolOut.writeShort(d);
+		});
+		return entry(tag + owner + "." + name + " " + desc, 1, () -> {
+			poolOut.writeByte(tag); poolOut.writeShort(c); poolOut.writeShort(nt);
+		});
+	}
+	
+	private interface PoolWriter {
+		void write() throws IOException;
+	}
+	
+	private int entry(String key, int slots, PoolWriter writer) {
+		Integer index = poolIndex.get(key);
+		if (index != null) return index;
+		try {
+			writer.write();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		index = poolCount;
+		poolCount += slots;
+		poolIndex.put(key, index);
+		return index;
+	}
+	
+	// Code
+	
+	void op(int opcode) {
+		emit(opcode);
+	}
+	
+	void op(int opcode, int index) {
+		emit(opcode);
+		emit(index >> 8);
+		emit(index);
+	}
+	
+	void local(int opcode, int slot) {
+		emit(opcode);
+		emit(slot);
+	}
+	
+	void push(int value) {
+		if (value >= -1 && value <= 5) {
+			emit(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			emit(BIPUSH);
+			emit(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op(SIPUSH, value);
+		} else {
+			op(LDC_W, intConstant(value));
+		}
+	}
+	
+	// Start a forward branch; returns where to patch() the target in
+	int branch(int opcode) {
+		int at = length;
+		op(opcode, 0);
+		return at;
+	}
+	
+	// Point a forward branch at the current position
+	void patch(int at) {
+		int offset = length - at;
+		code[at + 1] = (byte) (offset >> 8);
+		code[at + 2] = (byte) offset;
+	}
+	
+	private void emit(int b) {
+		if (length == code.length) code = Arrays.copyOf(code, length * 2);
+		code[length++] = (byte) b;
+	}
+	
+	// Finish the class around the code written so far, which becomes the
+	// body of the one method
+	byte [] toByteArray(String methodName, String methodDesc, int maxLocals) {
+		int codeAttr = utf8("Code");
+		int initName = utf8("<init>");
+		int initDesc = utf8("()V");
+		int objectInit = method("java/lang/Object", "<init>", "()V");
+		int runName = utf8(methodName);
+		int runDesc = utf8(methodDesc);
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(pool.size() + length + 128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolCount);
+			pool.writeTo(out);
+			out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(iface);
+			out.writeShort(0); // fields
+			out.writeShort(2); // methods
+			
+			// public <init>() { super(); }
+			out.writeShort(0x0001);
+			out.writeShort(initName);
+			out.writeShort(initDesc);
+			out.writeShort(1);
+			out.writeShort(codeAttr);
+			out.writeInt(12 + 5);
+			out.writeShort(1);
+			out.writeShort(1);
+			out.writeInt(5);
+			out.writeByte(ALOAD_0);
+			out.writeByte(INVOKESPECIAL);
+			out.writeShort(objectInit);
+			out.writeByte(RETURN);
+			out.writeShort(0);
+			out.writeShort(0);
+			
+			// public final <run>
+			out.writeShort(0x0001 | 0x0010);
+			out.writeShort(runName);
+			out.writeShort(runDesc);
+			out.writeShort(1);
+			out.writeShort(codeAttr);
+			out.writeInt(12 + length);
+			out.writeShort(MAX_STACK);
+			out.writeShort(maxLocals);
+			out.writeInt(length);
+			out.write(code, 0, length);
+			out.writeShort(0);
+			out.writeShort(0);
+			
+			out.writeShort(0); // class attributes
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+}
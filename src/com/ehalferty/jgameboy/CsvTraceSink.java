@@ -0,0 +1,102 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Streams trace records to disk as "PC,SP,I,AF,BC,DE,HL" decimal lines,
+// the same layout as traced.csv. Digits are written straight into a direct
+// buffer which is handed to the channel only when it fills up.
+public class CsvTraceSink implements TraceSink, Closeable {
+	
+	private static final int BUFFER_SIZE = 1 << 16;
+	
+	// Longest possible record: 7 fields of up to 5 digits, 6 commas, newline
+	private static final int MAX_RECORD = 7 * 5 + 6 + 1;
+	
+	private final FileChannel channel;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	
+	public CsvTraceSink(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+	
+	@Override
+	public void trace(int pc, int sp, int instr, int af, int bc, int de, int hl) {
+		if (buf.remaining() < MAX_RECORD) drain();
+		putDecimal(pc);
+		buf.put((byte) ',');
+		putDecimal(sp);
+		buf.put((byte) ',');
+		putDecimal(instr);
+		buf.put((byte) ',');
+		putDecimal(af);
+		buf.put((byte) ',');
+		putDecimal(bc);
+		buf.put((byte) ',');
+		putDecimal(de);
+		buf.put((byte) ',');
+		putDecimal(hl);
+		buf.put((byte) '\n');
+	}
+	
+	// Values are at most 16 bits wide, so five digits always suffice
+	private void putDecimal(int v) {
+		v &= 0xFFFF;
+		if (v >= 10000) buf.put((byte) ('0' + v / 10000));
+		if (v >= 1000) buf.put((byte) ('0' + v / 1000 % 10));
+		if (v >= 100) buf.put((byte) ('0' + v / 100 % 10));
+		if (v >= 10) buf.put((byte) ('0' + v / 10 % 10));
+		buf.put((byte) ('0' + v % 10));
+	}
+	
+	private void drain() {
+		buf.flip();
+		try {
+			while (buf.hasRemaining()) channel.write(buf);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		buf.clear();
+	}
+	
+	public void flush() throws IOException {
+		try {
+			drain();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -18,29 +18,268 @@
 */
 package com.ehalferty.jgameboy;
 
+import java.nio.ByteBuffer;
+import java.util.function.Predicate;
+
 public class Emulator {
-	private static CPU cpu;
 	
-	int i = 0;
+	// 154 scanlines of 456 clocks each
+	public static final int CYCLES_PER_FRAME = 70224;
+	
+	private CPU cpu;
+	private MMU mmu;
+	private Interrupts interrupts;
+	private Scheduler scheduler;
+	private Timer timer;
+	private PPU ppu;
+	private APU apu;
+	private Joypad joypad;
+	private Serial serial;
+	private BlockCache blocks;
+	
+	// Run cached blocks instead of single instructions where possible
+	private boolean blockCacheEnabled = true;
+	
+	// Compiles hot blocks; null when the JIT is off
+	private Jit jit = null;
+	
+	// Jump over time the CPU spends halted or polling a register in a loop
+	// that nothing but the next hardware event can end. Either way the
+	// machine ends up exactly where running through it would have left it.
+	private boolean idleSkipEnabled = true;
+	private long haltCyclesSkipped = 0;
+	private long spinCyclesSkipped = 0;
+	
+	// Instructions executed since init()
+	private long instructions = 0;
+	
+	// Statistics for the most recent runCycles/runFrames/runUntil call
+	private long lastRunInstructions = 0;
+	private long lastRunNanos = 0;
 	
 	public void init(byte[] gameBytes) {
-		cpu = new CPU(gameBytes);
+		init(new Cartridge(gameBytes));
+	}
+	
+	public void init(Cartridge cart) {
+		mmu = new MMU(cart);
+		interrupts = new Interrupts(mmu);
+		cpu = new CPU(mmu, interrupts);
+		scheduler = new Scheduler();
+		timer = new Timer(mmu, scheduler, interrupts);
+		ppu = new PPU(mmu, scheduler, interrupts);
+		apu = new APU(mmu, scheduler);
+		joypad = new Joypad(mmu, interrupts);
+		serial = new Serial(mmu, interrupts);
+		blocks = new BlockCache(mmu);
+		interrupts.setBlockCache(blocks);
+		instructions = 0;
+		haltCyclesSkipped = 0;
+		spinCyclesSkipped = 0;
+	}
+	
+	// Pass null to turn tracing off. Tracing runs one instruction at a
+	// time, so the block cache sits idle while a sink is set.
+	public void setTraceSink(TraceSink sink) {
+		cpu.setTraceSink(sink);
+	}
+	
+	public void setBlockCacheEnabled(boolean enabled) {
+		blockCacheEnabled = enabled;
+		blocks.clear();
+	}
+	
+	// The JIT works on cached blocks, so it needs the block cache on too
+	public void setJitEnabled(boolean enabled) {
+		jit = enabled ? new Jit() : null;
+		blocks.clear();
 	}
 	
+	public void setIdleSkipEnabled(boolean enabled) {
+		idleSkipEnabled = enabled;
+	}
+	
+	// Run one frame
 	public void run() {
-		
-		// Graphics chip emulation will go here.
-		
-		// For now, just scroll a pixel down the screen.
-		
-		EmulatorWindow.pixels[0][i] = 0;
-		i++;
-		if (i > 143) i = 0;
-		EmulatorWindow.pixels[0][i] = 2;
-		if (cpu.isRunning()) {
-			
-			// Run a CPU instruction
-			cpu.step();
+		runFrames(1);
+	}
+	
+	// Run at least the given number of clock cycles as fast as possible,
+	// without touching the window. Returns the instructions executed.
+	public long runCycles(long n) {
+		long start = System.nanoTime();
+		long target = scheduler.getNow() + n;
+		long count = 0;
+		boolean useBlocks = blockCacheEnabled && cpu.getTraceSink() == null;
+		while (scheduler.getNow() < target && cpu.isRunning()) {
+			if (idleSkipEnabled && cpu.isIdle()) {
+				skipHalt(target);
+				continue;
+			}
+			BlockCache.Block b = (useBlocks && !cpu.needsService()) ? blocks.lookup(cpu.getPC()) : null;
+			if (b != null) {
+				boolean spins = b.spins && idleSkipEnabled;
+				long pass = scheduler.getNow();
+				long next = scheduler.getNextEventTime();
+				long registers = spins ? cpu.getRegisterState() : 0;
+				
+				// Compiled code can't stop for an interrupt mid-block, so
+				// with interrupts on it only runs up to the next event
+				long end = cpu.getInterruptsEnabled() ? Math.min(target, next) : target;
+				int done = (b.compiled != null) ? b.compiled.run(cpu, scheduler, blocks, end) : 0;
+				count += (done > 0) ? done : runBlock(b, target);
+				
+				if (spins && cpu.getPC() == b.pc && scheduler.getNextEventTime() == next
+						&& cpu.getRegisterState() == registers) {
+					count += skipSpins(b, scheduler.getNow() - pass, target);
+				}
+			} else {
+				count += step();
+			}
+		}
+		return finishRun(count, start);
+	}
+	
+	// Run up to the end of the given number of whole frames
+	public long runFrames(int frames) {
+		long target = (getFrame() + frames) * CYCLES_PER_FRAME;
+		return runCycles(target - scheduler.getNow());
+	}
+	
+	// Run until the condition holds, checking it before each instruction
+	public long runUntil(Predicate<Emulator> condition) {
+		long start = System.nanoTime();
+		long count = 0;
+		while (cpu.isRunning() && !condition.test(this)) {
+			count += step();
 		}
+		return finishRun(count, start);
+	}
+	
+	// Step the CPU once. Returns 0 if it sat out four cycles of a HALT
+	// rather than running an instruction, so idle time isn't counted.
+	private int step() {
+		boolean idle = cpu.isIdle();
+		scheduler.advance(cpu.step());
+		return idle ? 0 : 1;
+	}
+	
+	// The CPU is halted and only an event can wake it, so rather than
+	// stepping four cycles at a time, jump straight to the next one. Events
+	// fall on four-cycle boundaries, so this ends exactly where stepping
+	// would have.
+	private void skipHalt(long target) {
+		long until = Math.min(scheduler.getNextEventTime(), target);
+		long skip = Math.min(Math.max(4, (until - scheduler.getNow() + 3) & ~3L), 1 << 30);
+		scheduler.advance((int) skip);
+		haltCyclesSkipped += skip;
+	}
+	
+	// A spin block just went once round its loop: it wrote nothing, no event
+	// fired, and it came back to its start with every register as it found
+	// it. Until an event changes what it reads, every pass will do the same,
+	// so skip the whole passes that end before the next event (or the
+	// target). Returns the instructions skipped.
+	private long skipSpins(BlockCache.Block b, long cycles, long target) {
+		long until = Math.min(scheduler.getNextEventTime(), target);
+		long passes = Math.min((until - 1 - scheduler.getNow()) / cycles, (1 << 30) / cycles);
+		if (passes <= 0) return 0;
+		scheduler.advance((int) (passes * cycles));
+		spinCyclesSkipped += passes * cycles;
+		return passes * b.count;
+	}
+	
+	// Run a block's instructions, stopping early where single steps would
+	// have: at the target, when the block's code is overwritten or when an
+	// interrupt is raised. (Only the last instruction of a block can stop
+	// or halt the CPU.) Returns the instructions executed.
+	private int runBlock(BlockCache.Block b, long target) {
+		int [] ops = b.ops;
+		int count = b.count;
+		if (++b.runs == Jit.THRESHOLD && jit != null) jit.compile(b, mmu);
+		blocks.stop = false;
+		for (int i = 0; i < count; i++) {
+			scheduler.advance(cpu.stepDecoded(ops[i]));
+			if (scheduler.getNow() >= target || blocks.stop) {
+				return i + 1;
+			}
+		}
+		return count;
+	}
+	
+	private long finishRun(long count, long start) {
+		instructions += count;
+		lastRunInstructions = count;
+		lastRunNanos = System.nanoTime() - start;
+		return count;
+	}
+	
+	// Capture the whole machine into a new save state
+	public SaveState snapshot() {
+		SaveState state = new SaveState();
+		snapshot(state);
+		return state;
+	}
+	
+	// Capture the whole machine, reusing the state's buffer
+	public void snapshot(SaveState state) {
+		Cartridge cart = mmu.getCartridge();
+		ByteBuffer buf = state.begin(stateSize());
+		buf.putShort((short) cart.getRomBanks()).put((byte) cart.getType());
+		cpu.saveState(buf);
+		mmu.saveState(buf);
+		scheduler.saveState(buf);
+		ppu.saveState(buf);
+		apu.saveState(buf);
+		joypad.saveState(buf);
+		buf.putLong(instructions);
+		state.finish();
+	}
+	
+	// Return to a captured state. It must come from the same cartridge.
+	public void restore(SaveState state) {
+		Cartridge cart = mmu.getCartridge();
+		ByteBuffer buf = state.open();
+		int banks = buf.getShort() & 0xFFFF;
+		int type = buf.get() & 0xFF;
+		if (banks != cart.getRomBanks() || type != cart.getType()) {
+			throw new IllegalArgumentException("Save state is for a different cartridge");
+		}
+		cpu.loadState(buf);
+		mmu.loadState(buf);
+		interrupts.update();
+		scheduler.loadState(buf);
+		ppu.loadState(buf);
+		apu.loadState(buf);
+		joypad.loadState(buf);
+		instructions = buf.getLong();
+		blocks.clear();
+	}
+	
+	private int stateSize() {
+		return 96 + mmu.stateSize() + PPU.stateSize() + APU.stateSize();
+	}
+	
+	public CPU getCPU() { return cpu; }
+	public MMU getMMU() { return mmu; }
+	public Interrupts getInterrupts() { return interrupts; }
+	public Scheduler getScheduler() { return scheduler; }
+	public PPU getPPU() { return ppu; }
+	public APU getAPU() { return apu; }
+	public Joypad getJoypad() { return joypad; }
+	public Serial getSerial() { return serial; }
+	public BlockCache getBlockCache() { return blocks; }
+	public Jit getJit() { return jit; }
+	public long getCycles() { return scheduler.getNow(); }
+	public long getInstructions() { return instructions; }
+	public long getFrame() { return scheduler.getNow() / CYCLES_PER_FRAME; }
+	public long getLastRunInstructions() { return lastRunInstructions; }
+	public long getHaltCyclesSkipped() { return haltCyclesSkipped; }
+	public long getSpinCyclesSkipped() { return spinCyclesSkipped; }
+	public long getLastRunNanos() { return lastRunNanos; }
+	
+	public double getLastRunInstructionsPerSecond() {
+		if (lastRunNanos == 0) return 0;
+		return lastRunInstructions * 1e9 / lastRunNanos;
 	}
 }
@@ -18,60 +18,117 @@
 */
 package com.ehalferty.jgameboy;
 
-import java.awt.Color;
+import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Toolkit;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.awt.image.BufferStrategy;
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.LockSupport;
 
+import javax.sound.sampled.LineUnavailableException;
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 
 
 public class EmulatorWindow extends JFrame {
 	
 	// Constants
-	static int SCALE = 4;
-	
-	// Shades of grey used by the gameboy.
-	static Color [] colors = {
-			new Color(0, 0, 0),
-			new Color(85, 85, 85),
-			new Color(171, 171, 171),
-			new Color(255, 255, 255)
-	};
-	
-	// Globals
-	protected static byte[] gameBytes;
-	protected static int [][] pixels = new int[160][144];
+	static final int SCALE = 4;
+	
+	// Samples buffered between the emulator and the sound card, about 85 ms.
+	// Rate control keeps it near half full.
+	static final int AUDIO_BUFFER = 8192;
+	
+	static final String TITLE = "Gameboy Emulator";
+	
+	// Speed while the fast-forward key (Tab) is held; 0 is uncapped
+	static final double FAST_FORWARD_SPEED = 0;
+	
+	// Rewind history: up to a minute of frames in at most 16 MB, with a
+	// full snapshot every second
+	static final int REWIND_MEMORY = 16 << 20;
+	static final int REWIND_FRAMES = 3600;
+	static final int REWIND_KEYFRAME_INTERVAL = 60;
+	
+	// Longest the render thread sleeps without a new frame, so a lost
+	// wakeup can only delay a repaint, never stop them
+	static final long RENDER_IDLE_NANOS = 100000000;
+	
 	private BufferStrategy bf;
 	private Graphics2D g;
 	private Emulator emu = new Emulator();
+	private FrameRenderer renderer = new FrameRenderer();
+	private AudioOutput audio;
+	private FramePacer pacer = new FramePacer();
+	private volatile boolean fastForward = false;
+	private volatile boolean rewinding = false;
 	
-	// Main
+	// Buttons held (Joypad bits), set by key events and handed to the
+	// emulator between frames
+	private volatile int buttons = 0;
+	
+	// A movie being recorded or played back, if any. Rewinding would
+	// rewrite its history, so it's off while there is one.
+	private Movie movie;
+	private boolean recording;
+	
+	// Rates are always published over JMX and JFR; F9 turns counting
+	// (hot spots, banks, call graph) on and off, printing the results
+	private Profiler profiler;
+	private volatile boolean profiling = false;
+	private final Rewind rewind = new Rewind(REWIND_MEMORY, REWIND_FRAMES, REWIND_KEYFRAME_INTERVAL);
+	
+	// Emulation publishes finished frames here and rendering takes the
+	// newest, so neither thread ever waits on the other
+	private final TripleBuffer frames = new TripleBuffer(PPU.WIDTH * PPU.HEIGHT);
+	private Thread emulationThread;
+	private Thread renderThread;
+	
+	// Set when the window has been uncovered and must be redrawn even if
+	// the emulated screen hasn't changed
+	private volatile boolean damaged = true;
+	
+	// Main. Usage: EmulatorWindow [rom] [-record movie.jgbm | -play movie.jgbm]
 	public static void main(String [] args) {
 		
 		// default ROM file
 		String ROMFileName = "demo.gb";
-		if (args.length > 0) {
-			ROMFileName = args[0];
+		Path recordTo = null;
+		Path playFrom = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-record") && i + 1 < args.length) {
+				recordTo = Paths.get(args[++i]);
+			} else if (args[i].equals("-play") && i + 1 < args.length) {
+				playFrom = Paths.get(args[++i]);
+			} else {
+				ROMFileName = args[i];
+			}
 		}
 		
-		// Try to open the file
-		File f = new File(ROMFileName);
-		
-		// Try to read the file as binary data
+		// Try to map the file
 		try {
-			gameBytes = Files.readAllBytes(f.toPath());
-			new EmulatorWindow();
-		} catch (IOException e) {
+			Cartridge cartridge = Cartridge.open(Paths.get(ROMFileName));
+			Runtime.getRuntime().addShutdownHook(new Thread(cartridge::close));
+			new EmulatorWindow(cartridge, recordTo, playFrom);
+		} catch (IOException | IllegalArgumentException e) {
 			e.printStackTrace();
+			System.exit(1);
 		}
 	}
 	
-	public EmulatorWindow() {
-		setTitle("Gameboy Emulator");
+	public EmulatorWindow(Cartridge cartridge) throws IOException {
+		this(cartridge, null, null);
+	}
+	
+	// Record the game to a movie file, written on exit, or play one back
+	// and carry on from where it ends
+	public EmulatorWindow(Cartridge cartridge, Path recordTo, Path playFrom) throws IOException {
+		setTitle(TITLE);
 		setLocation(20, 20);
 		setSize(SCALE * 160 + 50, SCALE * 144 + 50);
 		setVisible(true);
@@ -80,56 +137,197 @@ public class EmulatorWindow extends JFrame {
 		createBufferStrategy(2);
 		bf = getBufferStrategy();
 		
-		// Clear all pixels
-		for (int i = 0; i < 160; i++) {
-			for (int j = 0; j < 144; j++) {
-				pixels[i][j] = 0;
+		// Tab would otherwise move the focus
+		setFocusTraversalKeysEnabled(false);
+		addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent e) {
+				if (e.getKeyCode() == KeyEvent.VK_TAB) fastForward = true;
+				if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) rewinding = true;
+				if (e.getKeyCode() == KeyEvent.VK_F9) profiling = !profiling;
+				buttons |= button(e.getKeyCode());
 			}
-		}
+			
+			@Override
+			public void keyReleased(KeyEvent e) {
+				if (e.getKeyCode() == KeyEvent.VK_TAB) fastForward = false;
+				if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) rewinding = false;
+				buttons &= ~button(e.getKeyCode());
+			}
+		});
 		
 		// Initialize the emulator
-		emu.init(gameBytes);
+		emu.init(cartridge);
+		startAudio();
+		if (playFrom != null) {
+			movie = Movie.readFrom(playFrom);
+			movie.start(emu);
+		} else if (recordTo != null) {
+			Movie recordingMovie = Movie.record(emu, Movie.DEFAULT_KEYFRAME_INTERVAL);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					recordingMovie.writeTo(recordTo);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}));
+			movie = recordingMovie;
+			recording = true;
+		}
+		
+		profiler = new Profiler(emu);
+		profiler.register("window");
 		
-		// Run the main game loop
-		gameLoop();
+		// Emulation and presentation each get a thread of their own
+		emulationThread = new Thread(this::gameLoop, "emulation");
+		renderThread = new Thread(this::renderLoop, "render");
+		renderThread.start();
+		emulationThread.start();
 	}
 	
+	// Run a frame (or step one back), publish it unless we're catching up,
+	// and wait for its time to come round. Rewinding moves the emulated
+	// clock backwards, so the pacer is given its own count of frame time
+	// that only ever goes forwards.
 	private void gameLoop() {
-		long lastLoopTime = System.nanoTime();
+		long paced = 0;
+		pacer.start(paced);
+		long statsFrom = System.nanoTime();
+		long published = 0, dropped = 0, acquired = 0, latency = 0;
 		while (true) {
+			double speed = fastForward ? FAST_FORWARD_SPEED : 1;
+			if (speed != pacer.getSpeed()) pacer.setSpeed(speed, paced);
+			if (profiling != profiler.isCounting()) toggleProfiler();
+			
+			if (rewinding && movie == null && rewind.rewind(emu)) {
+				paced += Emulator.CYCLES_PER_FRAME;
+			} else {
+				long before = emu.getCycles();
+				if (recording) {
+					movie.recordFrame(emu, buttons);
+				} else if (movie == null || !movie.playFrame(emu)) {
+					emu.getJoypad().setButtons(buttons);
+					emu.run();
+				}
+				if (movie == null) rewind.capture(emu);
+				paced += emu.getCycles() - before;
+			}
+			if (pacer.shouldDraw(paced)) publishFrame();
+			pacer.sync(paced);
+			
 			long now = System.nanoTime();
-		      lastLoopTime = now;
-		      drawFrame();
-		      emu.run();
-		      try {
-		    	  Thread.sleep( (lastLoopTime-System.nanoTime())/1000000 + 10 );
-		      } catch (Exception e) { }
+			if (now - statsFrom >= 1000000000L) {
+				showStatistics(now - statsFrom, frames.getPublished() - published,
+						frames.getDropped() - dropped, frames.getAcquired() - acquired,
+						frames.getLatencyTotalNanos() - latency);
+				published = frames.getPublished();
+				dropped = frames.getDropped();
+				acquired = frames.getAcquired();
+				latency = frames.getLatencyTotalNanos();
+				statsFrom = now;
+			}
+		}
+	}
+	
+	private void toggleProfiler() {
+		if (profiling) {
+			profiler.reset();
+			profiler.start();
+		} else {
+			profiler.stop();
+			profiler.report(System.out);
+		}
+	}
+	
+	// Copy the finished frame out of the PPU and wake the render thread
+	private void publishFrame() {
+		byte [] frame = emu.getPPU().getFrameBuffer();
+		System.arraycopy(frame, 0, frames.getBackBuffer(), 0, frame.length);
+		frames.publish();
+		LockSupport.unpark(renderThread);
+	}
+	
+	// Present the newest published frame, or sleep until there is one or
+	// the window needs repainting
+	private void renderLoop() {
+		while (true) {
+			byte [] frame = frames.acquire();
+			if (frame == null && !damaged) {
+				LockSupport.parkNanos(this, RENDER_IDLE_NANOS);
+				continue;
+			}
+			drawFrame(frame);
+		}
+	}
+	
+	// Frames published, dropped before they were shown and skipped per
+	// second, how long frames waited to be shown, how late the pacer woke
+	// and how much rewind history is held, in the title. Called on the
+	// emulation thread, so the title itself is set on the event thread.
+	private void showStatistics(long nanos, long published, long dropped, long acquired, long latency) {
+		double seconds = nanos / 1e9;
+		String title = String.format("%s - %.1f fps, %.0f skipped, %.0f dropped, handoff %.2f ms, jitter %.2f ms avg / %.2f ms sd / %.2f ms max, rewind %.0f s in %d KB%s%s",
+				TITLE, published / seconds, pacer.getFramesSkipped() / seconds, dropped / seconds,
+				acquired > 0 ? latency / 1e6 / acquired : 0,
+				pacer.getJitterMeanNanos() / 1e6, pacer.getJitterStdDevNanos() / 1e6, pacer.getJitterMaxNanos() / 1e6,
+				rewind.getSeconds(), rewind.getBytesUsed() >> 10,
+				rewinding ? " (rewind)" : fastForward ? " (fast forward)" : "",
+				movie == null ? "" : String.format(", movie %s frame %d/%d",
+						recording ? "recording" : "playing", movie.getPosition(), movie.getLength()));
+		SwingUtilities.invokeLater(() -> setTitle(title));
+		pacer.resetStatistics();
+	}
+	
+	// The joypad button a key stands for, or 0
+	private static int button(int keyCode) {
+		switch (keyCode) {
+		case KeyEvent.VK_RIGHT: return Joypad.RIGHT;
+		case KeyEvent.VK_LEFT: return Joypad.LEFT;
+		case KeyEvent.VK_UP: return Joypad.UP;
+		case KeyEvent.VK_DOWN: return Joypad.DOWN;
+		case KeyEvent.VK_X: return Joypad.A;
+		case KeyEvent.VK_Z: return Joypad.B;
+		case KeyEvent.VK_SHIFT: return Joypad.SELECT;
+		case KeyEvent.VK_ENTER: return Joypad.START;
+		default: return 0;
+		}
+	}
+	
+	// Sound plays on its own thread; without a sound line the game just
+	// runs silently
+	private void startAudio() {
+		AudioRing ring = new AudioRing(AUDIO_BUFFER);
+		try {
+			audio = new AudioOutput(ring, APU.DEFAULT_SAMPLE_RATE);
+			emu.getAPU().setOutput(ring, APU.DEFAULT_SAMPLE_RATE, true);
+		} catch (LineUnavailableException | IllegalArgumentException e) {
+			System.err.println("No sound: " + e.getMessage());
 		}
 	}
 	
-	// Draw the pixels to the JFrame at the correct scale
-	private void drawFrame() {
+	// Draw a frame (or, given null, the last one again) to the JFrame at the
+	// correct scale, unless it is the same as what is already showing
+	private void drawFrame(byte [] frame) {
+		boolean changed = frame != null && renderer.update(frame);
+		if (!changed && !damaged) return;
+		damaged = false;
 		try {
 			g = (Graphics2D) bf.getDrawGraphics();
-			int prevColor = 0;
-			for (int i = 0; i < 160; i++) {
-				for (int j = 0; j < 144; j++) {
-					int x = i * SCALE + 30;
-					int y = j * SCALE + 30;
-					if (pixels[i][j] == prevColor) {
-						
-					} else {
-						g.setColor(colors[pixels[i][j]]);
-					}
-					prevColor = pixels[i][j];
-					g.fillRect(x, y, SCALE, SCALE);
-				}
-			}
+			renderer.draw(g, 30, 30, SCALE);
 		} finally {
 			g.dispose();
 		}
 		bf.show();
 		Toolkit.getDefaultToolkit().sync();
 	}
-}
-
+	
+	// Metrics of the handoff between the emulation and render threads
+	public TripleBuffer getFrameHandoff() { return frames; }
+	
+	// Rendering is active, so all AWT needs to do is ask for a redraw
+	@Override
+	public void paint(Graphics g) {
+		damaged = true;
+		if (renderThread != null) LockSupport.unpark(renderThread);
+	}
+}
\ No newline at end of file
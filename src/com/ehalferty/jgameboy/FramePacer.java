@@ -0,0 +1,144 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Keeps a real-time loop in step with the emulated clock. Each frame's
+// deadline comes from the cycles emulated so far (70224 cycles at
+// 4.194304 MHz, about 59.73 frames a second), not from counting frames, so
+// rounding never accumulates. Waiting parks the thread until shortly before
+// the deadline and spins the rest of the way, since parking alone can
+// overshoot by a millisecond or more.
+//
+// When the loop falls more than a frame behind, drawing is skipped (up to
+// MAX_FRAME_SKIP frames in a row) so the emulation can catch up. If it is
+// hopelessly behind, the deadlines start over from now instead.
+public class FramePacer {
+	
+	public static final long FRAME_NANOS = Emulator.CYCLES_PER_FRAME * 1000000000L / Scheduler.CLOCK_HZ;
+	
+	// Frames that may go undrawn in a row while catching up
+	static final int MAX_FRAME_SKIP = 4;
+	
+	// How close to the deadline to stop parking and start spinning
+	private static final long SPIN_NANOS = 1000000;
+	
+	// Multiple of real time; 0 runs as fast as possible
+	private double speed = 1;
+	
+	// The deadlines count from this pair
+	private long startNanos;
+	private long startCycles;
+	
+	private int skippedInRow = 0;
+	private long lastDrawn;
+	
+	// Statistics: how late each wait woke, by Welford's running mean/variance
+	private long framesDrawn = 0;
+	private long framesSkipped = 0;
+	private long waits = 0;
+	private double jitterMean = 0;
+	private double jitterM2 = 0;
+	private long jitterMax = 0;
+	
+	// Start pacing from the given emulated cycle
+	public void start(long cycles) {
+		startNanos = System.nanoTime();
+		startCycles = cycles;
+		skippedInRow = 0;
+		lastDrawn = startNanos;
+	}
+	
+	// Change speed from the current point, without a jump
+	public void setSpeed(double speed, long cycles) {
+		this.speed = speed;
+		start(cycles);
+	}
+	
+	public double getSpeed() { return speed; }
+	
+	// When the frame ending at the given cycle is due on the host clock
+	private long deadline(long cycles) {
+		return startNanos + (long) ((cycles - startCycles) * (1e9 / Scheduler.CLOCK_HZ) / speed);
+	}
+	
+	// Called with each finished frame: whether to draw it. Uncapped, only
+	// as many frames are drawn as real time would show.
+	public boolean shouldDraw(long cycles) {
+		long now = System.nanoTime();
+		boolean draw;
+		if (speed <= 0) {
+			draw = now - lastDrawn >= FRAME_NANOS;
+		} else {
+			draw = now - deadline(cycles) <= FRAME_NANOS || skippedInRow >= MAX_FRAME_SKIP;
+		}
+		if (draw) {
+			skippedInRow = 0;
+			lastDrawn = now;
+			framesDrawn++;
+		} else {
+			skippedInRow++;
+			framesSkipped++;
+		}
+		return draw;
+	}
+	
+	// Wait until the frame ending at the given cycle is due
+	public void sync(long cycles) {
+		if (speed <= 0) return;
+		long deadline = deadline(cycles);
+		long remaining = deadline - System.nanoTime();
+		if (remaining < -MAX_FRAME_SKIP * FRAME_NANOS) {
+			// Too far behind to catch up: carry on from here
+			start(cycles);
+			return;
+		}
+		if (remaining <= 0) return;
+		while (remaining > SPIN_NANOS) {
+			LockSupport.parkNanos(remaining - SPIN_NANOS);
+			remaining = deadline - System.nanoTime();
+		}
+		long now;
+		while ((now = System.nanoTime()) < deadline) {
+			Thread.onSpinWait();
+		}
+		recordJitter(now - deadline);
+	}
+	
+	private void recordJitter(long late) {
+		waits++;
+		double delta = late - jitterMean;
+		jitterMean += delta / waits;
+		jitterM2 += delta * (late - jitterMean);
+		if (late > jitterMax) jitterMax = late;
+	}
+	
+	public void resetStatistics() {
+		framesDrawn = framesSkipped = waits = 0;
+		jitterMean = jitterM2 = 0;
+		jitterMax = 0;
+	}
+	
+	public long getFramesDrawn() { return framesDrawn; }
+	public long getFramesSkipped() { return framesSkipped; }
+	public double getJitterMeanNanos() { return jitterMean; }
+	public long getJitterMaxNanos() { return jitterMax; }
+	public double getJitterStdDevNanos() { return waits > 1 ? Math.sqrt(jitterM2 / (waits - 1)) : 0; }
+}
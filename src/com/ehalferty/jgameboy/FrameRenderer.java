@@ -0,0 +1,57 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+// Turns the PPU's shade framebuffer into a 160x144 image that can be drawn
+// scaled with a single drawImage call. Remembers the last frame it was
+// given so that callers can skip presenting a frame that hasn't changed.
+public class FrameRenderer {
+	
+	// Shades of grey used by the gameboy, indexed by PPU shade (0 = white)
+	static final int [] PALETTE = { 0xFFFFFFFF, 0xFFABABAB, 0xFF555555, 0xFF000000 };
+	
+	private final BufferedImage image =
+			new BufferedImage(PPU.WIDTH, PPU.HEIGHT, BufferedImage.TYPE_INT_RGB);
+	private final int [] imagePixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	private final byte [] lastFrame = new byte[PPU.WIDTH * PPU.HEIGHT];
+	private boolean empty = true;
+	
+	// Copy a frame into the image. Returns false, leaving the image as it
+	// was, if the frame is identical to the previous one.
+	public boolean update(byte [] frame) {
+		if (!empty && Arrays.equals(frame, lastFrame)) return false;
+		for (int i = 0; i < imagePixels.length; i++) {
+			imagePixels[i] = PALETTE[frame[i] & 0x03];
+		}
+		System.arraycopy(frame, 0, lastFrame, 0, lastFrame.length);
+		empty = false;
+		return true;
+	}
+	
+	public void draw(Graphics2D g, int x, int y, int scale) {
+		g.drawImage(image, x, y, PPU.WIDTH * scale, PPU.HEIGHT * scale, null);
+	}
+	
+	public BufferedImage getImage() { return image; }
+}
@@ -0,0 +1,177 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+// Runs a ROM with no window and no throttling, then prints how fast it went.
+// Usage: HeadlessRunner [rom] [frames] [-trace file.csv] [-wav file.wav] [-jit] [-noskip] [-rewind]
+//        [-movie file.jgbm [-seek frame]] [-profile]
+public class HeadlessRunner {
+	
+	public static void main(String [] args) throws IOException {
+		String ROMFileName = "demo.gb";
+		int frames = 600;
+		String traceFileName = null;
+		String wavFileName = null;
+		boolean jit = false;
+		boolean idleSkip = true;
+		boolean rewindHistory = false;
+		String movieFileName = null;
+		int seekFrame = -1;
+		boolean profile = false;
+		
+		int positional = 0;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-trace") && i + 1 < args.length) {
+				traceFileName = args[++i];
+			} else if (args[i].equals("-wav") && i + 1 < args.length) {
+				wavFileName = args[++i];
+			} else if (args[i].equals("-jit")) {
+				jit = true;
+			} else if (args[i].equals("-noskip")) {
+				idleSkip = false;
+			} else if (args[i].equals("-rewind")) {
+				rewindHistory = true;
+			} else if (args[i].equals("-movie") && i + 1 < args.length) {
+				movieFileName = args[++i];
+			} else if (args[i].equals("-profile")) {
+				profile = true;
+			} else if (args[i].equals("-seek") && i + 1 < args.length) {
+				seekFrame = Integer.parseInt(args[++i]);
+			} else if (positional == 0) {
+				ROMFileName = args[i];
+				positional++;
+			} else {
+				frames = Integer.parseInt(args[i]);
+			}
+		}
+		
+		Emulator emu = new Emulator();
+		Cartridge cart = Cartridge.open(Paths.get(ROMFileName));
+		emu.init(cart);
+		emu.setJitEnabled(jit);
+		emu.setIdleSkipEnabled(idleSkip);
+		
+		CsvTraceSink trace = null;
+		if (traceFileName != null) {
+			trace = new CsvTraceSink(Paths.get(traceFileName));
+			emu.setTraceSink(trace);
+		}
+		
+		// Audio goes to the file a frame at a time, so the ring only ever
+		// needs to hold one frame's worth
+		WavWriter wav = null;
+		AudioRing ring = null;
+		if (wavFileName != null) {
+			wav = new WavWriter(Paths.get(wavFileName), APU.DEFAULT_SAMPLE_RATE);
+			ring = new AudioRing(1 << 14);
+			emu.getAPU().setOutput(ring, APU.DEFAULT_SAMPLE_RATE, false);
+		}
+		
+		// Rewind history as the window keeps it, captured after every frame
+		Rewind rewind = null;
+		if (rewindHistory) {
+			rewind = new Rewind(EmulatorWindow.REWIND_MEMORY, EmulatorWindow.REWIND_FRAMES,
+					EmulatorWindow.REWIND_KEYFRAME_INTERVAL);
+		}
+		
+		// Count every instruction run, and publish the counts over JMX and
+		// JFR (see -XX:StartFlightRecording) while running
+		Profiler profiler = null;
+		if (profile) {
+			profiler = new Profiler(emu, trace);
+			profiler.register(ROMFileName);
+		}
+		
+		// A movie supplies the buttons for each frame. Seeking goes to the
+		// keyframe before the frame and runs on from there.
+		Movie movie = null;
+		if (movieFileName != null) {
+			movie = Movie.readFrom(Paths.get(movieFileName));
+			if (seekFrame >= 0) {
+				long seekStart = System.nanoTime();
+				int ran = movie.seek(emu, seekFrame);
+				System.out.printf("Seek to frame %d of %d: ran %d frames in %.1f ms%n", seekFrame,
+						movie.getLength(), ran, (System.nanoTime() - seekStart) / 1e6);
+			} else {
+				movie.start(emu);
+			}
+		}
+		
+		if (profiler != null) profiler.start();
+		
+		long instructions = 0;
+		long nanos = 0;
+		try {
+			if (wav == null && rewind == null && movie == null && profiler == null) {
+				emu.runFrames(frames);
+				instructions = emu.getLastRunInstructions();
+				nanos = emu.getLastRunNanos();
+			} else {
+				for (int i = 0; i < frames; i++) {
+					if (movie == null) {
+						emu.runFrames(1);
+					} else if (!movie.playFrame(emu)) {
+						break;
+					}
+					instructions += emu.getLastRunInstructions();
+					nanos += emu.getLastRunNanos();
+					if (wav != null) wav.drain(ring);
+					if (rewind != null) rewind.capture(emu);
+				}
+			}
+		} finally {
+			if (trace != null) trace.close();
+			if (wav != null) wav.close();
+			cart.close();
+		}
+		
+		System.out.printf("%s: %d frames, %d instructions in %.1f ms (%.0f instructions/s)%n",
+				ROMFileName, emu.getFrame(), instructions, nanos / 1e6, instructions * 1e9 / Math.max(1, nanos));
+		if (wav != null) {
+			System.out.printf("Audio: %d samples to %s, %d dropped%n",
+					wav.getSamplesWritten(), wavFileName, ring.getDropped());
+		}
+		if (profiler != null) {
+			profiler.stop();
+			profiler.unregister();
+			profiler.report(System.out);
+		}
+		if (movie != null) {
+			System.out.printf("Movie: at frame %d of %d%n", movie.getPosition(), movie.getLength());
+		}
+		if (rewind != null) {
+			System.out.printf("Rewind: %d frames (%.1f s) in %d of %d KB, %.0f:1, capture %.1f us avg / %.1f us max%n",
+					rewind.getFrames(), rewind.getSeconds(), rewind.getBytesUsed() >> 10, rewind.getCapacity() >> 10,
+					rewind.getCompressionRatio(), rewind.getCaptureMeanNanos() / 1e3, rewind.getCaptureMaxNanos() / 1e3);
+		}
+		if (jit) {
+			Jit j = emu.getJit();
+			System.out.printf("JIT: %d blocks compiled, %d rejected%s%n", j.getBlocksCompiled(), j.getCompileFailures(),
+					(j.getFirstCompileFailure() == null) ? "" : " (first: " + j.getFirstCompileFailure() + ")");
+		}
+		System.out.printf("Idle cycles skipped: %d halted, %d in spin loops (of %d)%n",
+				emu.getHaltCyclesSkipped(), emu.getSpinCyclesSkipped(), emu.getCycles());
+		if (!emu.getCPU().isRunning()) {
+			System.out.printf("CPU stopped at PC=%04X%n", emu.getCPU().getPC());
+		}
+	}
+}
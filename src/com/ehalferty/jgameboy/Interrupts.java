@@ -0,0 +1,100 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+// The interrupt request (IF, 0xFF0F) and enable (IE, 0xFFFF) registers.
+// Hardware raises a request with request(); the CPU takes the lowest
+// pending source between instructions. Both registers live in the MMU's
+// I/O page like any other, and this keeps their AND up to date so the CPU
+// can check for pending interrupts with a single field read.
+public class Interrupts implements IoHandler {
+	
+	public static final int IF = 0xFF0F;
+	public static final int IE = 0xFFFF;
+	
+	// Sources, by IF/IE bit. Lower bits have priority.
+	public static final int VBLANK = 0x01;
+	public static final int STAT = 0x02;
+	public static final int TIMER = 0x04;
+	public static final int SERIAL = 0x08;
+	public static final int JOYPAD = 0x10;
+	
+	// Handler addresses, by bit
+	private static final int VECTOR_BASE = 0x40;
+	
+	private final MMU mmu;
+	
+	// Requested and enabled sources (IF & IE & 0x1F)
+	private int pending = 0;
+	
+	// Interrupts taken, by source bit, for statistics
+	private final long [] taken = new long[5];
+	
+	// Cached code runs several instructions at a time; it's told to stop
+	// when something becomes pending so the CPU can take it in between
+	private BlockCache blocks;
+	
+	public Interrupts(MMU mmu) {
+		this.mmu = mmu;
+		mmu.setIoHandler(IF, this);
+		mmu.setIoHandler(IE, this);
+		update();
+	}
+	
+	@Override
+	public void ioWrite(int addr, int value) {
+		update();
+	}
+	
+	// Raise one or more sources
+	public void request(int sources) {
+		mmu.setIoRegister(IF, mmu.readByte(IF) | sources);
+		update();
+	}
+	
+	// Clear a source's request as the CPU jumps to its handler, returning
+	// the handler's address
+	int acknowledge(int source) {
+		mmu.setIoRegister(IF, mmu.readByte(IF) & ~source);
+		update();
+		int bit = Integer.numberOfTrailingZeros(source);
+		taken[bit]++;
+		return VECTOR_BASE + bit * 8;
+	}
+	
+	// Recompute after IF or IE changed behind our back (a restored state)
+	void update() {
+		pending = mmu.readByte(IF) & mmu.readByte(IE) & 0x1F;
+		if (pending != 0 && blocks != null) blocks.stop = true;
+	}
+	
+	void setBlockCache(BlockCache blocks) { this.blocks = blocks; }
+	
+	public int getPending() { return pending; }
+	public int getRequested() { return mmu.readByte(IF) & 0x1F; }
+	public int getEnabled() { return mmu.readByte(IE) & 0x1F; }
+	
+	// Interrupts taken from one source (a single bit), or from all of them
+	public long getTaken(int source) { return taken[Integer.numberOfTrailingZeros(source)]; }
+	public long getTaken() {
+		long total = 0;
+		for (long n : taken) total += n;
+		return total;
+	}
+}
@@ -0,0 +1,684 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.lang.invoke.MethodHandles;
+
+// Optional tier above the block cache: once a block has run THRESHOLD times
+// it is compiled into a hidden class whose run() method does the block's
+// work directly, with the registers and flags held in JVM locals.
+//
+// Common instructions (loads, 8-bit ALU, INC/DEC, 16-bit loads and
+// increments) are emitted inline, copying the interpreter's behaviour
+// exactly, quirks included. Flag results that a later inline instruction
+// overwrites before anything reads them are never computed. Everything
+// else, including the branch that ends the block, spills the locals back
+// to the CPU and runs through the interpreter.
+//
+// Compiled code only runs when the whole block fits before the target it
+// is given, so it never has to stop halfway for that. With interrupts
+// enabled the emulator passes the next event's time, so no event can raise
+// one mid-block. The block leaves early if a write lands on cached code,
+// raises an interrupt itself (IF, IE) or brings an event forward (TAC,
+// LCDC). Otherwise it advances the scheduler after each instruction just
+// as the interpreter does.
+public class Jit {
+	
+	// Block runs before compiling
+	static final int THRESHOLD = 256;
+	
+	// Most cycles any one instruction can take
+	private static final int MAX_INSTRUCTION_CYCLES = 24;
+	
+	public interface CompiledBlock {
+		// Returns the instructions run, or 0 if the block must be interpreted
+		int run(CPU cpu, Scheduler scheduler, BlockCache cache, long target);
+	}
+	
+	private static final String CPU_CLASS = "com/ehalferty/jgameboy/CPU";
+	private static final String SCHEDULER_CLASS = "com/ehalferty/jgameboy/Scheduler";
+	private static final String CACHE_CLASS = "com/ehalferty/jgameboy/BlockCache";
+	private static final String RUN_DESC = "(L" + CPU_CLASS + ";L" + SCHEDULER_CLASS + ";L" + CACHE_CLASS + ";J)I";
+	
+	// Local variable slots in run()
+	private static final int CPU_SLOT = 1, SCHEDULER_SLOT = 2, CACHE_SLOT = 3, TARGET_SLOT = 4;
+	private static final int A = 6, B = 7, C = 8, D = 9, E = 10, H = 11, L = 12, SP = 13;
+	private static final int FZ = 14, FC = 15, FH = 16, FN = 17;
+	private static final int T = 18, X = 19, Y = 20, NEXT = 21;
+	private static final int LOCALS = 23;
+	
+	// Register slots by the 3-bit operand code (6 is (HL), which isn't one)
+	private static final int [] REG = { B, C, D, E, H, L, -1, A };
+	
+	private static final String [] REG_FIELDS = { "A", "B", "C", "D", "E", "H", "L", "SP" };
+	private static final String [] FLAG_FIELDS = { "FZ", "FC", "FH", "FN" };
+	
+	// Flag bits for the liveness pass
+	private static final int Z_FLAG = 1, C_FLAG = 2, H_FLAG = 4, N_FLAG = 8, ALL_FLAGS = 15;
+	
+	private final MethodHandles.Lookup lookup = CPU.lookup();
+	
+	// Statistics
+	private long compiled = 0;
+	private long failed = 0;
+	private String firstFailure = null;
+	
+	// Compile a block, leaving it to the interpreter if the class is
+	// rejected. Only the JVM turning down what we assembled is caught: a
+	// VerifyError there means a bug in the emitter, so the first one is kept
+	// for reporting.
+	void compile(BlockCache.Block b, MMU mmu) {
+		try {
+			byte [] bytes = assemble(b, mmu);
+			Class<?> c = lookup.defineHiddenClass(bytes, true, MethodHandles.Lookup.ClassOption.NESTMATE).lookupClass();
+			b.compiled = (CompiledBlock) c.getDeclaredConstructor().newInstance();
+			compiled++;
+		} catch (LinkageError | ReflectiveOperationException e) {
+			if (failed++ == 0) firstFailure = String.format("block at %04X: %s", b.pc, e);
+		}
+	}
+	
+	byte [] assemble(BlockCache.Block b, MMU mmu) {
+		int count = b.count;
+		int [] ops = b.ops;
+		
+		// Where each instruction starts, plus where the block ends
+		int [] pcs = new int[count + 1];
+		pcs[0] = b.pc;
+		for (int i = 0; i < count; i++) {
+			int length = BlockCache.LENGTH[ops[i]];
+			pcs[i + 1] = pcs[i] + (length == 0 ? 1 : length);
+		}
+		
+		// Flags still needed after each instruction. Anything that leaves
+		// compiled code (the interpreter, an early exit) needs all of them.
+		int [] liveOut = new int[count];
+		int live = ALL_FLAGS;
+		int maxCycles = 0;
+		for (int i = count - 1; i >= 0; i--) {
+			int op = ops[i];
+			if (!canInline(op)) {
+				liveOut[i] = live;
+				live = ALL_FLAGS;
+				maxCycles += MAX_INSTRUCTION_CYCLES;
+			} else {
+				if (writesMemory(op)) live = ALL_FLAGS;
+				liveOut[i] = live;
+				live = (live & ~flagsWritten(op)) | flagsRead(op);
+				maxCycles += CPU.CYCLES[op];
+			}
+		}
+		
+		ClassAssembler a = new ClassAssembler(CPU_CLASS + "$Compiled", "com/ehalferty/jgameboy/Jit$CompiledBlock");
+		
+		// if (scheduler.getNow() + maxCycles >= target) return 0;
+		a.local(ClassAssembler.ALOAD, SCHEDULER_SLOT);
+		a.op(ClassAssembler.INVOKEVIRTUAL, a.method(SCHEDULER_CLASS, "getNow", "()J"));
+		a.op(ClassAssembler.LDC2_W, a.longConstant(maxCycles));
+		a.op(ClassAssembler.LADD);
+		a.local(ClassAssembler.LLOAD, TARGET_SLOT);
+		a.op(ClassAssembler.LCMP);
+		int fits = a.branch(ClassAssembler.IFLT);
+		a.push(0);
+		a.op(ClassAssembler.IRETURN);
+		a.patch(fits);
+		
+		// cache.stop = false; next = scheduler.getNextEventTime();
+		a.local(ClassAssembler.ALOAD, CACHE_SLOT);
+		a.push(0);
+		a.op(ClassAssembler.PUTFIELD, a.field(CACHE_CLASS, "stop", "Z"));
+		a.local(ClassAssembler.ALOAD, SCHEDULER_SLOT);
+		a.op(ClassAssembler.INVOKEVIRTUAL, a.method(SCHEDULER_CLASS, "getNextEventTime", "()J"));
+		a.local(ClassAssembler.LSTORE, NEXT);
+		loadRegisters(a);
+		
+		for (int i = 0; i < count; i++) {
+			int op = ops[i];
+			boolean last = (i == count - 1);
+			if (!canInline(op)) {
+				// Hand the instruction to the interpreter
+				storeRegisters(a);
+				a.local(ClassAssembler.ALOAD, CPU_SLOT);
+				a.push(pcs[i]);
+				a.op(ClassAssembler.PUTFIELD, a.field(CPU_CLASS, "PC", "I"));
+				a.local(ClassAssembler.ALOAD, CPU_SLOT);
+				a.push(op);
+				a.op(ClassAssembler.INVOKEVIRTUAL, a.method(CPU_CLASS, "stepDecoded", "(I)I"));
+				a.local(ClassAssembler.ISTORE, T);
+				advance(a, -1);
+				if (last) {
+					a.push(count);
+					a.op(ClassAssembler.IRETURN);
+				} else {
+					loadRegisters(a);
+					int same = checkStop(a);
+					a.push(i + 1);
+					a.op(ClassAssembler.IRETURN);
+					a.patch(same);
+				}
+				continue;
+			}
+			
+			emitInline(a, op, pcs[i], liveOut[i], mmu);
+			advance(a, CPU.CYCLES[op]);
+			if (last) {
+				exit(a, count, pcs[count], CPU.CYCLES[op]);
+			} else if (writesMemory(op)) {
+				int same = checkStop(a);
+				exit(a, i + 1, pcs[i + 1], CPU.CYCLES[op]);
+				a.patch(same);
+			}
+		}
+		return a.toByteArray("run", RUN_DESC, LOCALS);
+	}
+	
+	// Instructions compiled inline; everything else goes to the interpreter
+	static boolean canInline(int op) {
+		if (op >= 0x40 && op < 0xC0) return op != 0x76;
+		switch (op) {
+		case 0x00:
+		case 0x01, 0x11, 0x21, 0x31:
+		case 0x03, 0x13, 0x23, 0x33, 0x0B, 0x1B, 0x2B, 0x3B:
+		case 0x04, 0x0C, 0x14, 0x1C, 0x24, 0x2C, 0x3C:
+		case 0x05, 0x0D, 0x15, 0x1D, 0x25, 0x2D, 0x3D:
+		case 0x06, 0x0E, 0x16, 0x1E, 0x26, 0x2E, 0x36, 0x3E:
+		case 0x0A, 0x1A, 0x2F, 0x37, 0x3F:
+		case 0xC6, 0xCE, 0xD6, 0xDE, 0xE6, 0xEE, 0xF6, 0xFE:
+		case 0xE0, 0xE2, 0xEA, 0xF0, 0xF2, 0xF9, 0xFA:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	private static boolean writesMemory(int op) {
+		return (op >= 0x70 && op < 0x78) || op == 0x36 || op == 0xE0 || op == 0xE2 || op == 0xEA;
+	}
+	
+	private static int flagsWritten(int op) {
+		if (op >= 0x80 && op < 0xC0) return ALL_FLAGS;
+		switch (op) {
+		case 0xC6, 0xCE, 0xD6, 0xDE, 0xFE, 0x3B:
+			return ALL_FLAGS;
+		case 0x04, 0x0C, 0x14, 0x1C, 0x24, 0x2C, 0x3C:
+		case 0x05, 0x0D, 0x15, 0x1D, 0x25, 0x2D, 0x3D:
+			return Z_FLAG | H_FLAG | N_FLAG;
+		case 0x03, 0x23, 0x33, 0x37, 0x3F:
+			return C_FLAG | H_FLAG | N_FLAG;
+		case 0x2F:
+			return H_FLAG | N_FLAG;
+		default:
+			return 0;
+		}
+	}
+	
+	private static int flagsRead(int op) {
+		if ((op >= 0x88 && op < 0x90) || (op >= 0x98 && op < 0xA0)) return C_FLAG;
+		return (op == 0xCE || op == 0xDE || op == 0x3F) ? C_FLAG : 0;
+	}
+	
+	// One inline instruction at pc, computing only the live flags
+	private void emitInline(ClassAssembler a, int op, int pc, int live, MMU mmu) {
+		int n = mmu.readByte(pc + 1);
+		int nn = (mmu.readByte(pc + 2) << 8) | n;
+		
+		if (op >= 0x40 && op < 0x80) {
+			int dst = (op >> 3) & 7;
+			int src = op & 7;
+			if (dst == 6) {
+				a.local(ClassAssembler.ALOAD, CPU_SLOT);
+				loadPair(a, H, L);
+				a.local(ClassAssembler.ILOAD, REG[src]);
+				writeByte(a);
+			} else if (src == 6) {
+				readAtHL(a);
+				a.local(ClassAssembler.ISTORE, REG[dst]);
+			} else if (dst != src) {
+				a.local(ClassAssembler.ILOAD, REG[src]);
+				a.local(ClassAssembler.ISTORE, REG[dst]);
+			}
+			return;
+		}
+		if (op >= 0x80 && op < 0xC0) {
+			operand(a, op & 7);
+			alu(a, (op >> 3) & 7, live);
+			return;
+		}
+		switch (op) {
+		case 0x00:
+			break;
+		case 0x01: setPair(a, B, C, nn); break;
+		case 0x11: setPair(a, D, E, nn); break;
+		case 0x21: setPair(a, H, L, nn); break;
+		case 0x31: a.push(nn); a.local(ClassAssembler.ISTORE, SP); break;
+		
+		// 16-bit INC/DEC. INC BC/HL/SP go through add16(), which clears
+		// C, H and N; DEC SP goes through sub16(), which sets all four.
+		case 0x03: stepPair(a, B, C, 1); clearFlags(a, live & (C_FLAG | H_FLAG | N_FLAG)); break;
+		case 0x13: stepPair(a, D, E, 1); break;
+		case 0x23: stepPair(a, H, L, 1); clearFlags(a, live & (C_FLAG | H_FLAG | N_FLAG)); break;
+		case 0x0B: stepPair(a, B, C, -1); break;
+		case 0x1B: stepPair(a, D, E, -1); break;
+		case 0x2B: stepPair(a, H, L, -1); break;
+		case 0x33:
+			a.local(ClassAssembler.ILOAD, SP);
+			a.push(1);
+			a.op(ClassAssembler.IADD);
+			a.push(0xFFFF);
+			a.op(ClassAssembler.IAND);
+			a.local(ClassAssembler.ISTORE, SP);
+			clearFlags(a, live & (C_FLAG | H_FLAG | N_FLAG));
+			break;
+		case 0x3B:
+			a.local(ClassAssembler.ILOAD, SP);
+			a.push(1);
+			a.op(ClassAssembler.ISUB);
+			a.local(ClassAssembler.ISTORE, Y);
+			if ((live & C_FLAG) != 0) signBit(a, Y, FC);
+			if ((live & Z_FLAG) != 0) isZero(a, Y, FZ);
+			setFlag(a, live, H_FLAG, FH, 0);
+			setFlag(a, live, N_FLAG, FN, 1);
+			a.local(ClassAssembler.ILOAD, Y);
+			a.push(0xFFFF);
+			a.op(ClassAssembler.IAND);
+			a.local(ClassAssembler.ISTORE, SP);
+			break;
+		
+		case 0x04, 0x0C, 0x14, 0x1C, 0x24, 0x2C, 0x3C:
+			incDec(a, REG[(op >> 3) & 7], true, live);
+			break;
+		case 0x05, 0x0D, 0x15, 0x1D, 0x25, 0x2D, 0x3D:
+			incDec(a, REG[(op >> 3) & 7], false, live);
+			break;
+		
+		case 0x06, 0x0E, 0x16, 0x1E, 0x26, 0x2E, 0x3E:
+			a.push(n);
+			a.local(ClassAssembler.ISTORE, REG[(op >> 3) & 7]);
+			break;
+		case 0x36:
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			loadPair(a, H, L);
+			a.push(n);
+			writeByte(a);
+			break;
+		
+		case 0x0A: readAt(a, B, C); a.local(ClassAssembler.ISTORE, A); break;
+		case 0x1A: readAt(a, D, E); a.local(ClassAssembler.ISTORE, A); break;
+		
+		case 0x2F:
+			a.local(ClassAssembler.ILOAD, A);
+			a.push(0xFF);
+			a.op(ClassAssembler.IXOR);
+			a.local(ClassAssembler.ISTORE, A);
+			setFlag(a, live, H_FLAG, FH, 1);
+			setFlag(a, live, N_FLAG, FN, 1);
+			break;
+		case 0x37:
+			setFlag(a, live, C_FLAG, FC, 1);
+			clearFlags(a, live & (H_FLAG | N_FLAG));
+			break;
+		case 0x3F:
+			if ((live & C_FLAG) != 0) {
+				a.local(ClassAssembler.ILOAD, FC);
+				a.push(1);
+				a.op(ClassAssembler.IXOR);
+				a.local(ClassAssembler.ISTORE, FC);
+			}
+			clearFlags(a, live & (H_FLAG | N_FLAG));
+			break;
+		
+		// ALU with an immediate. AND/OR/XOR n don't touch the flags here.
+		case 0xC6: a.push(n); alu(a, 0, live); break;
+		case 0xCE: a.push(n); alu(a, 1, live); break;
+		case 0xD6: a.push(n); alu(a, 2, live); break;
+		case 0xDE: a.push(n); alu(a, 3, live); break;
+		case 0xFE: a.push(n); alu(a, 7, live); break;
+		case 0xE6: logicalNoFlags(a, n, ClassAssembler.IAND); break;
+		case 0xEE: logicalNoFlags(a, n, ClassAssembler.IXOR); break;
+		case 0xF6: logicalNoFlags(a, n, ClassAssembler.IOR); break;
+		
+		case 0xE0:
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			a.push(0xFF00 + n);
+			a.local(ClassAssembler.ILOAD, A);
+			writeByte(a);
+			break;
+		case 0xE2:
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			a.push(0xFF00);
+			a.local(ClassAssembler.ILOAD, C);
+			a.op(ClassAssembler.IADD);
+			a.local(ClassAssembler.ILOAD, A);
+			writeByte(a);
+			break;
+		case 0xEA:
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			a.push(nn);
+			a.local(ClassAssembler.ILOAD, A);
+			writeByte(a);
+			break;
+		case 0xF0:
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			a.push(0xFF00 + n);
+			readByte(a);
+			a.local(ClassAssembler.ISTORE, A);
+			break;
+		case 0xF2:
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			a.push(0xFF00);
+			a.local(ClassAssembler.ILOAD, C);
+			a.op(ClassAssembler.IADD);
+			readByte(a);
+			a.local(ClassAssembler.ISTORE, A);
+			break;
+		case 0xFA:
+			// Like the interpreter, this doesn't step over its operand
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			a.push(nn);
+			readByte(a);
+			a.local(ClassAssembler.ISTORE, A);
+			break;
+		case 0xF9:
+			loadPair(a, H, L);
+			a.local(ClassAssembler.ISTORE, SP);
+			break;
+		default:
+			throw new IllegalArgumentException("Opcode not compiled inline: " + op);
+		}
+	}
+	
+	// Push the second operand of an 0x80-0xBF style instruction
+	private void operand(ClassAssembler a, int code) {
+		if (code == 6) {
+			readAtHL(a);
+		} else {
+			a.local(ClassAssembler.ILOAD, REG[code]);
+		}
+	}
+	
+	// ADD/ADC/SUB/SBC/AND/XOR/OR/CP of A with the operand on the stack,
+	// matching add8() and friends in CPU
+	private void alu(ClassAssembler a, int kind, int live) {
+		a.local(ClassAssembler.ISTORE, X);
+		switch (kind) {
+		case 0, 1:
+			// sum = A + X (+ carry); Z = sum == 0; C = 0; N = 0; H = bit 3 of sum and of X
+			a.local(ClassAssembler.ILOAD, A);
+			a.local(ClassAssembler.ILOAD, X);
+			a.op(ClassAssembler.IADD);
+			if (kind == 1) {
+				a.local(ClassAssembler.ILOAD, FC);
+				a.op(ClassAssembler.IADD);
+			}
+			a.local(ClassAssembler.ISTORE, Y);
+			if ((live & Z_FLAG) != 0) isZero(a, Y, FZ);
+			setFlag(a, live, C_FLAG, FC, 0);
+			setFlag(a, live, N_FLAG, FN, 0);
+			if ((live & H_FLAG) != 0) {
+				a.local(ClassAssembler.ILOAD, Y);
+				a.local(ClassAssembler.ILOAD, X);
+				a.op(ClassAssembler.IAND);
+				a.push(3);
+				a.op(ClassAssembler.ISHR);
+				a.push(1);
+				a.op(ClassAssembler.IAND);
+				a.local(ClassAssembler.ISTORE, FH);
+			}
+			storeA(a);
+			break;
+		case 2, 3, 7:
+			// dif = A - X (- carry); C = dif < 0; Z = dif == 0; N = 1; H = !bit 3 of A and bit 3 of X
+			a.local(ClassAssembler.ILOAD, A);
+			a.local(ClassAssembler.ILOAD, X);
+			a.op(ClassAssembler.ISUB);
+			if (kind == 3) {
+				a.local(ClassAssembler.ILOAD, FC);
+				a.op(ClassAssembler.ISUB);
+			}
+			a.local(ClassAssembler.ISTORE, Y);
+			if ((live & C_FLAG) != 0) signBit(a, Y, FC);
+			if ((live & Z_FLAG) != 0) isZero(a, Y, FZ);
+			setFlag(a, live, N_FLAG, FN, 1);
+			if ((live & H_FLAG) != 0) {
+				a.local(ClassAssembler.ILOAD, A);
+				a.push(-1);
+				a.op(ClassAssembler.IXOR);
+				a.local(ClassAssembler.ILOAD, X);
+				a.op(ClassAssembler.IAND);
+				a.push(3);
+				a.op(ClassAssembler.ISHR);
+				a.push(1);
+				a.op(ClassAssembler.IAND);
+				a.local(ClassAssembler.ISTORE, FH);
+			}
+			if (kind != 7) storeA(a);
+			break;
+		default:
+			// res = A op X; Z = res == 0; C = 0; N = 0; H = 1 for AND, else 0
+			a.local(ClassAssembler.ILOAD, A);
+			a.local(ClassAssembler.ILOAD, X);
+			a.op(kind == 4 ? ClassAssembler.IAND : kind == 5 ? ClassAssembler.IXOR : ClassAssembler.IOR);
+			a.local(ClassAssembler.ISTORE, A);
+			if ((live & Z_FLAG) != 0) isZero(a, A, FZ);
+			setFlag(a, live, C_FLAG, FC, 0);
+			setFlag(a, live, N_FLAG, FN, 0);
+			setFlag(a, live, H_FLAG, FH, kind == 4 ? 1 : 0);
+			break;
+		}
+	}
+	
+	// A = Y & 0xFF
+	private void storeA(ClassAssembler a) {
+		a.local(ClassAssembler.ILOAD, Y);
+		a.push(0xFF);
+		a.op(ClassAssembler.IAND);
+		a.local(ClassAssembler.ISTORE, A);
+	}
+	
+	private void logicalNoFlags(ClassAssembler a, int n, int opcode) {
+		a.local(ClassAssembler.ILOAD, A);
+		a.push(n);
+		a.op(opcode);
+		a.local(ClassAssembler.ISTORE, A);
+	}
+	
+	// inc8()/dec8(): H from the low nibble before, Z from the result, N set for DEC
+	private void incDec(ClassAssembler a, int reg, boolean inc, int live) {
+		if ((live & H_FLAG) != 0) {
+			a.local(ClassAssembler.ILOAD, reg);
+			a.push(0xF);
+			a.op(ClassAssembler.IAND);
+			a.push(1);
+			if (inc) {
+				a.op(ClassAssembler.IADD);
+				a.push(4);
+				a.op(ClassAssembler.ISHR);
+			} else {
+				a.op(ClassAssembler.ISUB);
+				a.push(31);
+				a.op(ClassAssembler.IUSHR);
+			}
+			a.local(ClassAssembler.ISTORE, FH);
+		}
+		a.local(ClassAssembler.ILOAD, reg);
+		a.push(1);
+		a.op(inc ? ClassAssembler.IADD : ClassAssembler.ISUB);
+		a.push(0xFF);
+		a.op(ClassAssembler.IAND);
+		a.local(ClassAssembler.ISTORE, reg);
+		if ((live & Z_FLAG) != 0) isZero(a, reg, FZ);
+		setFlag(a, live, N_FLAG, FN, inc ? 0 : 1);
+	}
+	
+	// flag = (v - 1 & ~v) >>> 31, which is 1 exactly when v == 0
+	private void isZero(ClassAssembler a, int v, int flag) {
+		a.local(ClassAssembler.ILOAD, v);
+		a.push(1);
+		a.op(ClassAssembler.ISUB);
+		a.local(ClassAssembler.ILOAD, v);
+		a.push(-1);
+		a.op(ClassAssembler.IXOR);
+		a.op(ClassAssembler.IAND);
+		a.push(31);
+		a.op(ClassAssembler.IUSHR);
+		a.local(ClassAssembler.ISTORE, flag);
+	}
+	
+	// flag = v < 0
+	private void signBit(ClassAssembler a, int v, int flag) {
+		a.local(ClassAssembler.ILOAD, v);
+		a.push(31);
+		a.op(ClassAssembler.IUSHR);
+		a.local(ClassAssembler.ISTORE, flag);
+	}
+	
+	private void setFlag(ClassAssembler a, int live, int bit, int flag, int value) {
+		if ((live & bit) == 0) return;
+		a.push(value);
+		a.local(ClassAssembler.ISTORE, flag);
+	}
+	
+	private void clearFlags(ClassAssembler a, int flags) {
+		setFlag(a, flags, C_FLAG, FC, 0);
+		setFlag(a, flags, H_FLAG, FH, 0);
+		setFlag(a, flags, N_FLAG, FN, 0);
+	}
+	
+	private void setPair(ClassAssembler a, int hi, int lo, int value) {
+		a.push(value >> 8);
+		a.local(ClassAssembler.ISTORE, hi);
+		a.push(value & 0xFF);
+		a.local(ClassAssembler.ISTORE, lo);
+	}
+	
+	// hi:lo += delta, wrapping at 16 bits
+	private void stepPair(ClassAssembler a, int hi, int lo, int delta) {
+		loadPair(a, hi, lo);
+		a.push(delta);
+		a.op(ClassAssembler.IADD);
+		a.local(ClassAssembler.ISTORE, Y);
+		a.local(ClassAssembler.ILOAD, Y);
+		a.push(8);
+		a.op(ClassAssembler.ISHR);
+		a.push(0xFF);
+		a.op(ClassAssembler.IAND);
+		a.local(ClassAssembler.ISTORE, hi);
+		a.local(ClassAssembler.ILOAD, Y);
+		a.push(0xFF);
+		a.op(ClassAssembler.IAND);
+		a.local(ClassAssembler.ISTORE, lo);
+	}
+	
+	private void loadPair(ClassAssembler a, int hi, int lo) {
+		a.local(ClassAssembler.ILOAD, hi);
+		a.push(8);
+		a.op(ClassAssembler.ISHL);
+		a.local(ClassAssembler.ILOAD, lo);
+		a.op(ClassAssembler.IOR);
+	}
+	
+	private void readAtHL(ClassAssembler a) {
+		readAt(a, H, L);
+	}
+	
+	private void readAt(ClassAssembler a, int hi, int lo) {
+		a.local(ClassAssembler.ALOAD, CPU_SLOT);
+		loadPair(a, hi, lo);
+		readByte(a);
+	}
+	
+	private void readByte(ClassAssembler a) {
+		a.op(ClassAssembler.INVOKEVIRTUAL, a.method(CPU_CLASS, "readByte", "(I)I"));
+	}
+	
+	private void writeByte(ClassAssembler a) {
+		a.op(ClassAssembler.INVOKEVIRTUAL, a.method(CPU_CLASS, "writeByte", "(II)V"));
+	}
+	
+	// scheduler.advance(cycles), or advance(t) for an interpreted instruction
+	private void advance(ClassAssembler a, int cycles) {
+		a.local(ClassAssembler.ALOAD, SCHEDULER_SLOT);
+		if (cycles < 0) {
+			a.local(ClassAssembler.ILOAD, T);
+		} else {
+			a.push(cycles);
+		}
+		a.op(ClassAssembler.INVOKEVIRTUAL, a.method(SCHEDULER_CLASS, "advance", "(I)V"));
+	}
+	
+	// Branch past what follows unless cache.stop is set or the instruction
+	// moved an event earlier than it was on entry:
+	// if ((cache.stop | (lcmp(scheduler.getNextEventTime(), next) >>> 31)) == 0)
+	private int checkStop(ClassAssembler a) {
+		a.local(ClassAssembler.ALOAD, CACHE_SLOT);
+		a.op(ClassAssembler.GETFIELD, a.field(CACHE_CLASS, "stop", "Z"));
+		a.local(ClassAssembler.ALOAD, SCHEDULER_SLOT);
+		a.op(ClassAssembler.INVOKEVIRTUAL, a.method(SCHEDULER_CLASS, "getNextEventTime", "()J"));
+		a.local(ClassAssembler.LLOAD, NEXT);
+		a.op(ClassAssembler.LCMP);
+		a.push(31);
+		a.op(ClassAssembler.IUSHR);
+		a.op(ClassAssembler.IOR);
+		return a.branch(ClassAssembler.IFEQ);
+	}
+	
+	// Write everything back and return count, with the CPU stopped at pc
+	private void exit(ClassAssembler a, int count, int pc, int cycles) {
+		storeRegisters(a);
+		a.local(ClassAssembler.ALOAD, CPU_SLOT);
+		a.push(pc);
+		a.push(cycles);
+		a.op(ClassAssembler.INVOKEVIRTUAL, a.method(CPU_CLASS, "endCompiled", "(II)V"));
+		a.push(count);
+		a.op(ClassAssembler.IRETURN);
+	}
+	
+	// The CPU's flags may still be pending, so they're flushed first
+	private void loadRegisters(ClassAssembler a) {
+		a.local(ClassAssembler.ALOAD, CPU_SLOT);
+		a.op(ClassAssembler.INVOKEVIRTUAL, a.method(CPU_CLASS, "flushFlags", "()V"));
+		for (int i = 0; i < REG_FIELDS.length; i++) {
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			a.op(ClassAssembler.GETFIELD, a.field(CPU_CLASS, REG_FIELDS[i], "I"));
+			a.local(ClassAssembler.ISTORE, A + i);
+		}
+		for (int i = 0; i < FLAG_FIELDS.length; i++) {
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			a.op(ClassAssembler.GETFIELD, a.field(CPU_CLASS, FLAG_FIELDS[i], "Z"));
+			a.local(ClassAssembler.ISTORE, FZ + i);
+		}
+	}
+	
+	private void storeRegisters(ClassAssembler a) {
+		for (int i = 0; i < REG_FIELDS.length; i++) {
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			a.local(ClassAssembler.ILOAD, A + i);
+			a.op(ClassAssembler.PUTFIELD, a.field(CPU_CLASS, REG_FIELDS[i], "I"));
+		}
+		for (int i = 0; i < FLAG_FIELDS.length; i++) {
+			a.local(ClassAssembler.ALOAD, CPU_SLOT);
+			a.local(ClassAssembler.ILOAD, FZ + i);
+			a.op(ClassAssembler.PUTFIELD, a.field(CPU_CLASS, FLAG_FIELDS[i], "Z"));
+		}
+	}
+	
+	public long getBlocksCompiled() { return compiled; }
+	public long getCompileFailures() { return failed; }
+	public String getFirstCompileFailure() { return firstFailure; }
+}
@@ -0,0 +1,100 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.nio.ByteBuffer;
+
+// The joypad register P1 (0xFF00). The eight buttons sit on a 2x4 matrix:
+// the game pulls bit 4 low to read the directions or bit 5 low to read the
+// buttons, and reads back the selected lines in bits 0-3, 0 meaning
+// pressed. A line going low raises the joypad interrupt, which is also
+// what ends a STOP.
+//
+// Buttons change only through setButtons(), between runs of the emulator,
+// so a run with the same buttons given at the same frames always does the
+// same thing. That is what makes movies replay exactly.
+public class Joypad implements IoHandler {
+	
+	public static final int P1 = 0xFF00;
+	
+	// Buttons, as bits of the value given to setButtons (1 = pressed)
+	public static final int RIGHT = 0x01;
+	public static final int LEFT = 0x02;
+	public static final int UP = 0x04;
+	public static final int DOWN = 0x08;
+	public static final int A = 0x10;
+	public static final int B = 0x20;
+	public static final int SELECT = 0x40;
+	public static final int START = 0x80;
+	
+	private static final int SELECT_DIRECTIONS = 0x10;
+	private static final int SELECT_BUTTONS = 0x20;
+	
+	private final MMU mmu;
+	private final Interrupts interrupts;
+	
+	private int buttons = 0;
+	
+	// Lines currently pulled low, as P1 bits 0-3 inverted
+	private int lines = 0;
+	
+	public Joypad(MMU mmu, Interrupts interrupts) {
+		this.mmu = mmu;
+		this.interrupts = interrupts;
+		mmu.setIoHandler(P1, this);
+		mmu.setIoRegister(P1, SELECT_DIRECTIONS | SELECT_BUTTONS);
+		update();
+	}
+	
+	// Only the select bits can be written; the lines follow from them
+	@Override
+	public void ioWrite(int addr, int value) {
+		update();
+	}
+	
+	public void setButtons(int pressed) {
+		buttons = pressed & 0xFF;
+		update();
+	}
+	
+	public int getButtons() { return buttons; }
+	
+	// Recompute P1 from the select bits and the buttons, and raise the
+	// interrupt for any line that went low
+	private void update() {
+		int select = mmu.readByte(P1) & 0x30;
+		int low = 0;
+		if ((select & SELECT_DIRECTIONS) == 0) low |= buttons & 0x0F;
+		if ((select & SELECT_BUTTONS) == 0) low |= buttons >> 4;
+		mmu.setIoRegister(P1, 0xC0 | select | (~low & 0x0F));
+		boolean fell = (low & ~lines) != 0;
+		lines = low;
+		if (fell) interrupts.request(Interrupts.JOYPAD);
+	}
+	
+	// Save state: the buttons held. P1 itself is in the I/O page.
+	void saveState(ByteBuffer buf) {
+		buf.put((byte) buttons);
+	}
+	
+	void loadState(ByteBuffer buf) {
+		buttons = buf.get() & 0xFF;
+		lines = ~mmu.readByte(P1) & 0x0F;
+	}
+}
@@ -0,0 +1,48 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.nio.ByteBuffer;
+
+// Memory bank controller. This base class is a plain 32 KB cartridge, with
+// optional RAM that is always enabled. Subclasses respond to writes into
+// the ROM area by remapping the MMU's page table; no memory is copied.
+// Their bank registers go into save states through saveState/loadState.
+public class MBC {
+	
+	protected final MMU mmu;
+	protected final Cartridge cart;
+	
+	public MBC(MMU mmu, Cartridge cart) {
+		this.mmu = mmu;
+		this.cart = cart;
+		mmu.mapRom(0, 0);
+		mmu.mapRom(1, 1);
+		if (cart.getRam().length > 0) mmu.mapRam(0);
+		else mmu.unmapRam();
+	}
+	
+	// A write to 0x0000-0x7FFF
+	public void write(int addr, int value) { }
+	
+	void saveState(ByteBuffer buf) { }
+	void loadState(ByteBuffer buf) { }
+	
+	protected static boolean enables(int value) { return (value & 0x0F) == 0x0A; }
+}
@@ -0,0 +1,69 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.nio.ByteBuffer;
+
+// MBC1: up to 2 MB ROM and 32 KB RAM. A 5-bit and a 2-bit register select
+// the banks; the mode register decides whether the 2-bit one applies to
+// ROM bank 0 and RAM as well.
+public class MBC1 extends MBC {
+	
+	private boolean ramEnabled = false;
+	private int low = 1;
+	private int high = 0;
+	private boolean advanced = false;
+	
+	public MBC1(MMU mmu, Cartridge cart) {
+		super(mmu, cart);
+		remap();
+	}
+	
+	@Override
+	public void write(int addr, int value) {
+		switch (addr >> 13) {
+		case 0: ramEnabled = enables(value); break;
+		case 1: low = value & 0x1F; if (low == 0) low = 1; break;
+		case 2: high = value & 0x03; break;
+		case 3: advanced = (value & 0x01) != 0; break;
+		}
+		remap();
+	}
+	
+	@Override
+	void saveState(ByteBuffer buf) {
+		buf.put((byte) (ramEnabled ? 1 : 0)).put((byte) low).put((byte) high).put((byte) (advanced ? 1 : 0));
+	}
+	
+	@Override
+	void loadState(ByteBuffer buf) {
+		ramEnabled = buf.get() != 0;
+		low = buf.get();
+		high = buf.get();
+		advanced = buf.get() != 0;
+		remap();
+	}
+	
+	private void remap() {
+		mmu.mapRom(0, advanced ? high << 5 : 0);
+		mmu.mapRom(1, (high << 5) | low);
+		if (ramEnabled && cart.getRam().length > 0) mmu.mapRam(advanced ? high : 0);
+		else mmu.unmapRam();
+	}
+}
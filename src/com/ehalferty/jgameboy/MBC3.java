@@ -0,0 +1,65 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.nio.ByteBuffer;
+
+// MBC3: up to 2 MB ROM and 32 KB RAM. The real-time clock registers can be
+// selected but are not emulated; they read as open bus.
+public class MBC3 extends MBC {
+	
+	private boolean ramEnabled = false;
+	private int romBank = 1;
+	private int ramSelect = 0;
+	
+	public MBC3(MMU mmu, Cartridge cart) {
+		super(mmu, cart);
+		remap();
+	}
+	
+	@Override
+	public void write(int addr, int value) {
+		switch (addr >> 13) {
+		case 0: ramEnabled = enables(value); break;
+		case 1: romBank = value & 0x7F; if (romBank == 0) romBank = 1; break;
+		case 2: ramSelect = value & 0x0F; break;
+		case 3: break; // Clock latch
+		}
+		remap();
+	}
+	
+	@Override
+	void saveState(ByteBuffer buf) {
+		buf.put((byte) (ramEnabled ? 1 : 0)).put((byte) romBank).put((byte) ramSelect);
+	}
+	
+	@Override
+	void loadState(ByteBuffer buf) {
+		ramEnabled = buf.get() != 0;
+		romBank = buf.get();
+		ramSelect = buf.get();
+		remap();
+	}
+	
+	private void remap() {
+		mmu.mapRom(1, romBank);
+		if (ramEnabled && ramSelect < 4 && cart.getRam().length > 0) mmu.mapRam(ramSelect);
+		else mmu.unmapRam();
+	}
+}
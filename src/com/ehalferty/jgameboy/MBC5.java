@@ -0,0 +1,63 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.nio.ByteBuffer;
+
+// MBC5: up to 8 MB ROM with a 9-bit bank number and 128 KB RAM. Unlike the
+// older controllers, ROM bank 0 can be mapped into the switchable slot.
+public class MBC5 extends MBC {
+	
+	private boolean ramEnabled = false;
+	private int romBank = 1;
+	private int ramBank = 0;
+	
+	public MBC5(MMU mmu, Cartridge cart) {
+		super(mmu, cart);
+		remap();
+	}
+	
+	@Override
+	public void write(int addr, int value) {
+		if (addr < 0x2000) ramEnabled = enables(value);
+		else if (addr < 0x3000) romBank = (romBank & 0x100) | value;
+		else if (addr < 0x4000) romBank = (romBank & 0xFF) | ((value & 0x01) << 8);
+		else if (addr < 0x6000) ramBank = value & 0x0F;
+		remap();
+	}
+	
+	@Override
+	void saveState(ByteBuffer buf) {
+		buf.put((byte) (ramEnabled ? 1 : 0)).putShort((short) romBank).put((byte) ramBank);
+	}
+	
+	@Override
+	void loadState(ByteBuffer buf) {
+		ramEnabled = buf.get() != 0;
+		romBank = buf.getShort();
+		ramBank = buf.get();
+		remap();
+	}
+	
+	private void remap() {
+		mmu.mapRom(1, romBank);
+		if (ramEnabled && cart.getRam().length > 0) mmu.mapRam(ramBank);
+		else mmu.unmapRam();
+	}
+}
@@ -0,0 +1,251 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// The 64 KB address space as 256 pages of 256 bytes. Each page points at a
+// byte array and an offset into it, so a read or write of ordinary memory
+// is a shift and two array lookups. Bank switching just repoints pages.
+// Pages with side effects (the ROM area, which talks to the MBC, tile data,
+// battery-backed cartridge RAM and the 0xFF00 I/O page) have no write page
+// and take the slow path.
+// RAM pages that hold cached code are write-protected the same way: the
+// first write to one tells the CodeWatcher and lifts the protection.
+public class MMU {
+	
+	// Told when a page holding cached code is written or remapped
+	public interface CodeWatcher {
+		void codeWritten(int page);
+	}
+	
+	private static final int PAGE_SIZE = 0x100;
+	private static final int PAGES_PER_ROM_BANK = Cartridge.ROM_BANK_SIZE / PAGE_SIZE;
+	private static final int PAGES_PER_RAM_BANK = Cartridge.RAM_BANK_SIZE / PAGE_SIZE;
+	
+	// Read as 0xFF (nothing driving the bus), and a sink for ignored writes
+	private static final byte [] OPEN_BUS = new byte[PAGE_SIZE];
+	static {
+		Arrays.fill(OPEN_BUS, (byte) 0xFF);
+	}
+	private final byte [] discard = new byte[PAGE_SIZE];
+	
+	// Page table
+	private final byte [][] readPages = new byte[0x100][];
+	private final int [] readBase = new int[0x100];
+	private final byte [][] writePages = new byte[0x100][];
+	private final int [] writeBase = new int[0x100];
+	
+	// Memory owned by the GameBoy itself
+	private final byte [] vram = new byte[0x2000];
+	private final byte [] wram = new byte[0x2000];
+	private final byte [] oam = new byte[PAGE_SIZE];
+	private final byte [] io = new byte[PAGE_SIZE];
+	
+	private final Cartridge cart;
+	private final MBC mbc;
+	
+	// The ROM bank in each slot
+	private final int [] romBank = new int[2];
+	
+	// Hardware that wants to see writes to its 0xFF00-0xFFFF registers
+	private final IoHandler [] ioHandlers = new IoHandler[0x100];
+	
+	// Notified of writes to tile data (0x8000-0x97FF)
+	private IoHandler tileDataHandler;
+	
+	// Pages holding cached code, and the write pages they had before
+	// being protected (null for pages that were already slow)
+	private final boolean [] codePages = new boolean[0x100];
+	private final byte [][] protectedPages = new byte[0x100][];
+	private CodeWatcher codeWatcher;
+	
+	public MMU(Cartridge cart) {
+		this.cart = cart;
+		
+		// 0x8000-0x9FFF: video RAM. Tile data writes go through the slow path.
+		for (int p = 0; p < 0x20; p++) {
+			mapPage(0x80 + p, vram, p * PAGE_SIZE, p >= 0x18);
+		}
+		// 0xC000-0xDFFF: work RAM, mirrored at 0xE000-0xFDFF
+		for (int p = 0; p < 0x20; p++) {
+			mapPage(0xC0 + p, wram, p * PAGE_SIZE, true);
+			if (0xE0 + p < 0xFE) mapPage(0xE0 + p, wram, p * PAGE_SIZE, true);
+		}
+		mapPage(0xFE, oam, 0, true);
+		mapPage(0xFF, io, 0, false);
+		
+		// 0x0000-0x7FFF and 0xA000-0xBFFF are mapped by the MBC
+		mbc = cart.createMBC(this);
+	}
+	
+	private void mapPage(int page, byte [] data, int base, boolean writable) {
+		if (codePages[page]) releaseCode(page);
+		readPages[page] = data;
+		readBase[page] = base;
+		writePages[page] = writable ? data : null;
+		writeBase[page] = base;
+	}
+	
+	public int readByte(int addr) {
+		int page = (addr >> 8) & 0xFF;
+		return readPages[page][readBase[page] + (addr & 0xFF)] & 0xFF;
+	}
+	
+	public void writeByte(int addr, int data) {
+		int page = (addr >> 8) & 0xFF;
+		byte [] p = writePages[page];
+		if (p != null) {
+			p[writeBase[page] + (addr & 0xFF)] = (byte) data;
+		} else {
+			writeSpecial(addr & 0xFFFF, data & 0xFF);
+		}
+	}
+	
+	private void writeSpecial(int addr, int data) {
+		int page = addr >> 8;
+		byte [] p = protectedPages[page];
+		if (p != null) {
+			p[writeBase[page] + (addr & 0xFF)] = (byte) data;
+		} else if (addr < 0x8000) {
+			mbc.write(addr, data);
+		} else if (addr < 0x9800) {
+			vram[addr - 0x8000] = (byte) data;
+			if (tileDataHandler != null) tileDataHandler.ioWrite(addr, data);
+		} else if (addr < 0xC000) {
+			cart.writeRam(writeBase[addr >> 8] + (addr & 0xFF), data);
+		} else {
+			io[addr & 0xFF] = (byte) data;
+			IoHandler h = ioHandlers[addr & 0xFF];
+			if (h != null) h.ioWrite(addr, data);
+		}
+		// (on the 0xFF page only high RAM can hold code, not the registers)
+		if (codePages[page] && (page != 0xFF || addr >= 0xFF80)) {
+			releaseCode(page);
+			int mirror = mirrorOf(page);
+			if (mirror >= 0 && codePages[mirror]) releaseCode(mirror);
+		}
+	}
+	
+	// Mark a RAM page as holding cached code, so the next write to it (or
+	// to its echo RAM mirror) is seen. The ROM area needs no protection:
+	// it can only change by bank switching, which the cache checks itself.
+	void watchCode(int page) {
+		if (page < 0x80) return;
+		protect(page);
+		int mirror = mirrorOf(page);
+		if (mirror >= 0) protect(mirror);
+	}
+	
+	private void protect(int page) {
+		if (codePages[page]) return;
+		codePages[page] = true;
+		if (writePages[page] != null) {
+			protectedPages[page] = writePages[page];
+			writePages[page] = null;
+		}
+	}
+	
+	private void releaseCode(int page) {
+		codePages[page] = false;
+		if (protectedPages[page] != null) {
+			writePages[page] = protectedPages[page];
+			protectedPages[page] = null;
+		}
+		if (codeWatcher != null) codeWatcher.codeWritten(page);
+	}
+	
+	// Work RAM pages are echoed 0x2000 higher, up to 0xFDFF
+	private static int mirrorOf(int page) {
+		if (page >= 0xC0 && page < 0xDE) return page + 0x20;
+		if (page >= 0xE0 && page < 0xFE) return page - 0x20;
+		return -1;
+	}
+	
+	public void setCodeWatcher(CodeWatcher watcher) { codeWatcher = watcher; }
+	
+	// Where a page currently reads from, so cached code can tell a bank switch
+	byte [] getPageData(int page) { return readPages[page]; }
+	int getPageBase(int page) { return readBase[page]; }
+	
+	// For hardware updating its own registers; bypasses the I/O handlers
+	public void setIoRegister(int addr, int data) { io[addr & 0xFF] = (byte) data; }
+	
+	public void setIoHandler(int addr, IoHandler handler) { ioHandlers[addr & 0xFF] = handler; }
+	public void setTileDataHandler(IoHandler handler) { tileDataHandler = handler; }
+	
+	// Point ROM slot 0 (0x0000-0x3FFF) or 1 (0x4000-0x7FFF) at a bank.
+	// Writes to the ROM area always go to the MBC, so no write page is set.
+	public void mapRom(int slot, int bank) {
+		bank %= cart.getRomBanks();
+		romBank[slot] = bank;
+		byte [] rom = cart.getRomBankData(bank);
+		int base = cart.getRomBankOffset(bank);
+		int first = slot * PAGES_PER_ROM_BANK;
+		for (int p = 0; p < PAGES_PER_ROM_BANK; p++) {
+			readPages[first + p] = rom;
+			readBase[first + p] = base + p * PAGE_SIZE;
+		}
+	}
+	
+	public int getRomBank(int slot) { return romBank[slot]; }
+	
+	// Point 0xA000-0xBFFF at a bank of cartridge RAM. RAM smaller than a
+	// bank (2 KB) repeats through the window. Battery RAM is read from the
+	// page table but written through the cartridge so it reaches the save.
+	public void mapRam(int bank) {
+		byte [] ram = cart.getRam();
+		int base = (bank % cart.getRamBanks()) * Cartridge.RAM_BANK_SIZE;
+		boolean direct = !cart.isPersistent();
+		for (int p = 0; p < PAGES_PER_RAM_BANK; p++) {
+			mapPage(0xA0 + p, ram, (base + p * PAGE_SIZE) % ram.length, direct);
+		}
+	}
+	
+	// Disabled or missing cartridge RAM reads as 0xFF and ignores writes
+	public void unmapRam() {
+		for (int p = 0; p < PAGES_PER_RAM_BANK; p++) {
+			if (codePages[0xA0 + p]) releaseCode(0xA0 + p);
+			readPages[0xA0 + p] = OPEN_BUS;
+			readBase[0xA0 + p] = 0;
+			writePages[0xA0 + p] = discard;
+			writeBase[0xA0 + p] = 0;
+		}
+	}
+	
+	// Save state: all RAM, the I/O registers and the MBC's bank registers
+	void saveState(ByteBuffer buf) {
+		buf.put(vram).put(wram).put(oam).put(io).put(cart.getRam());
+		mbc.saveState(buf);
+	}
+	
+	void loadState(ByteBuffer buf) {
+		buf.get(vram).get(wram).get(oam).get(io);
+		cart.loadRam(buf);
+		mbc.loadState(buf);
+	}
+	
+	int stateSize() {
+		return vram.length + wram.length + oam.length + io.length + cart.getRam().length + 8;
+	}
+	
+	public Cartridge getCartridge() { return cart; }
+	public MBC getMBC() { return mbc; }
+}
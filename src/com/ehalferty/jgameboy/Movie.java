@@ -0,0 +1,303 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// A recording of a game: the state it started from and the buttons held
+// for each frame after. Replaying it from the same state with the same
+// buttons gives the same game, bit for bit, since the emulator only takes
+// input between frames.
+//
+// Every keyframeInterval frames the whole machine state is kept as well,
+// so seeking far into a long movie only has to restore the nearest
+// keyframe and run the frames after it. The file:
+//
+//   "JGBM" magic, u16 version, u32 ROM CRC-32, u32 keyframe interval,
+//   u32 frames, u32 keyframes,
+//   index: u32 frame, u32 offset, u32 length for each keyframe,
+//   u32 length and the start state,
+//   one byte of buttons (Joypad bits) per frame,
+//   the keyframes.
+//
+// States are deflated save states. Opened files are memory mapped, and a
+// keyframe is only read when a seek needs it.
+public class Movie {
+	
+	public static final int MAGIC = 0x4A47424D;
+	public static final int VERSION = 1;
+	
+	// Thirty seconds: a seek runs at most that much game
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 1800;
+	
+	private static final int HEADER_SIZE = 22;
+	private static final int INDEX_ENTRY_SIZE = 12;
+	
+	private final int romChecksum;
+	private final int keyframeInterval;
+	private final byte [] start;
+	
+	private byte [] inputs;
+	private int length;
+	
+	// Keyframes by frame number; a null state is still in the file
+	private int keyframes = 0;
+	private int [] keyFrame = new int[16];
+	private byte [][] keyState = new byte[16][];
+	private int [] keyOffset = new int[16];
+	private int [] keyLength = new int[16];
+	private ByteBuffer file;
+	
+	// The next frame to play or record
+	private int position = 0;
+	
+	private final SaveState state = new SaveState();
+	
+	private Movie(int romChecksum, int keyframeInterval, byte [] start, int frames) {
+		this.romChecksum = romChecksum;
+		this.keyframeInterval = keyframeInterval;
+		this.start = start;
+		inputs = new byte[Math.max(1024, frames)];
+		length = frames;
+	}
+	
+	// Start recording from the machine's current state
+	public static Movie record(Emulator emu, int keyframeInterval) {
+		if (keyframeInterval <= 0) throw new IllegalArgumentException("Keyframe interval must be positive");
+		SaveState state = new SaveState();
+		emu.snapshot(state);
+		return new Movie(checksum(emu.getMMU().getCartridge()), keyframeInterval, deflate(state), 0);
+	}
+	
+	// Run the next frame with the given buttons held, adding it to the
+	// movie. Recording partway through a replay drops the rest of it.
+	public synchronized void recordFrame(Emulator emu, int buttons) {
+		if (position < length) truncate(position);
+		if (position > 0 && position % keyframeInterval == 0) {
+			emu.snapshot(state);
+			addKeyframe(position, deflate(state), 0, 0);
+		}
+		if (length == inputs.length) inputs = Arrays.copyOf(inputs, length * 2);
+		inputs[length++] = (byte) buttons;
+		runFrame(emu, buttons);
+	}
+	
+	// Go back to the start state, ready to play from frame 0
+	public void start(Emulator emu) {
+		checkCartridge(emu);
+		restore(emu, start);
+		position = 0;
+	}
+	
+	// Play the next frame. Returns false, running nothing, at the end.
+	public boolean playFrame(Emulator emu) {
+		if (position >= length) return false;
+		runFrame(emu, inputs[position] & 0xFF);
+		return true;
+	}
+	
+	// Put the machine where it was at the start of the given frame, from
+	// the nearest keyframe before it. Returns the frames run to get there.
+	public int seek(Emulator emu, int frame) {
+		if (frame < 0 || frame > length) throw new IllegalArgumentException("No frame " + frame + " in the movie");
+		checkCartridge(emu);
+		int k = nearestKeyframe(frame);
+		if (k < 0) {
+			restore(emu, start);
+			position = 0;
+		} else {
+			restore(emu, keyframeState(k));
+			position = keyFrame[k];
+		}
+		int run = frame - position;
+		while (position < frame) playFrame(emu);
+		return run;
+	}
+	
+	private void runFrame(Emulator emu, int buttons) {
+		emu.getJoypad().setButtons(buttons);
+		emu.run();
+		position++;
+	}
+	
+	// The last keyframe at or before the frame, or -1 for none
+	private int nearestKeyframe(int frame) {
+		int i = Arrays.binarySearch(keyFrame, 0, keyframes, frame);
+		return (i >= 0) ? i : -i - 2;
+	}
+	
+	private void truncate(int frames) {
+		length = frames;
+		keyframes = nearestKeyframe(frames - 1) + 1;
+	}
+	
+	private void addKeyframe(int frame, byte [] data, int offset, int size) {
+		if (keyframes == keyFrame.length) {
+			int n = keyframes * 2;
+			keyFrame = Arrays.copyOf(keyFrame, n);
+			keyState = Arrays.copyOf(keyState, n);
+			keyOffset = Arrays.copyOf(keyOffset, n);
+			keyLength = Arrays.copyOf(keyLength, n);
+		}
+		keyFrame[keyframes] = frame;
+		keyState[keyframes] = data;
+		keyOffset[keyframes] = offset;
+		keyLength[keyframes] = size;
+		keyframes++;
+	}
+	
+	private byte [] keyframeState(int k) {
+		if (keyState[k] == null) {
+			byte [] data = new byte[keyLength[k]];
+			file.get(keyOffset[k], data);
+			keyState[k] = data;
+		}
+		return keyState[k];
+	}
+	
+	private void restore(Emulator emu, byte [] deflated) {
+		inflate(deflated, state);
+		emu.restore(state);
+	}
+	
+	private void checkCartridge(Emulator emu) {
+		if (checksum(emu.getMMU().getCartridge()) != romChecksum) {
+			throw new IllegalArgumentException("Movie is for a different ROM");
+		}
+	}
+	
+	public synchronized void writeTo(Path path) throws IOException {
+		int offset = HEADER_SIZE + keyframes * INDEX_ENTRY_SIZE + 4 + start.length + length;
+		ByteBuffer head = ByteBuffer.allocate(offset);
+		head.putInt(MAGIC).putShort((short) VERSION);
+		head.putInt(romChecksum).putInt(keyframeInterval).putInt(length).putInt(keyframes);
+		for (int k = 0; k < keyframes; k++) {
+			int size = keyframeState(k).length;
+			head.putInt(keyFrame[k]).putInt(offset).putInt(size);
+			offset += size;
+		}
+		head.putInt(start.length).put(start);
+		head.put(inputs, 0, length);
+		head.flip();
+		
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (head.hasRemaining()) ch.write(head);
+			for (int k = 0; k < keyframes; k++) {
+				ByteBuffer data = ByteBuffer.wrap(keyState[k]);
+				while (data.hasRemaining()) ch.write(data);
+			}
+		}
+	}
+	
+	public static Movie readFrom(Path path) throws IOException {
+		ByteBuffer buf;
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+		if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+			throw new IOException("Not a jGameboy movie");
+		}
+		int version = buf.getShort() & 0xFFFF;
+		if (version != VERSION) throw new IOException("Unsupported movie version " + version);
+		int romChecksum = buf.getInt();
+		int keyframeInterval = buf.getInt();
+		int frames = buf.getInt();
+		int keyframes = buf.getInt();
+		
+		int indexAt = buf.position();
+		buf.position(indexAt + keyframes * INDEX_ENTRY_SIZE);
+		byte [] start = new byte[buf.getInt()];
+		buf.get(start);
+		Movie movie = new Movie(romChecksum, keyframeInterval, start, frames);
+		buf.get(movie.inputs, 0, frames);
+		
+		movie.file = buf;
+		for (int k = 0; k < keyframes; k++) {
+			int at = indexAt + k * INDEX_ENTRY_SIZE;
+			movie.addKeyframe(buf.getInt(at), null, buf.getInt(at + 4), buf.getInt(at + 8));
+		}
+		return movie;
+	}
+	
+	// A state is stored as its u32 size then its bytes, deflated
+	private static byte [] deflate(SaveState state) {
+		byte [] raw = state.array();
+		int size = state.size();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(raw, 0, size);
+			deflater.finish();
+			byte [] out = new byte[4 + size + size / 1000 + 64];
+			ByteBuffer.wrap(out).putInt(size);
+			int n = 4;
+			while (!deflater.finished()) {
+				if (n == out.length) out = Arrays.copyOf(out, out.length * 2);
+				n += deflater.deflate(out, n, out.length - n);
+			}
+			return Arrays.copyOf(out, n);
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	private static void inflate(byte [] data, SaveState state) {
+		int size = ByteBuffer.wrap(data).getInt();
+		byte [] raw = state.reserve(size);
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, 4, data.length - 4);
+			int n = 0;
+			while (n < size && !inflater.finished()) {
+				int got = inflater.inflate(raw, n, size - n);
+				if (got == 0 && inflater.needsInput()) break;
+				n += got;
+			}
+			if (n != size) throw new IllegalArgumentException("Corrupt movie state");
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Corrupt movie state", e);
+		} finally {
+			inflater.end();
+		}
+	}
+	
+	// CRC-32 of the whole ROM, so a movie can't be played on the wrong game
+	private static int checksum(Cartridge cart) {
+		CRC32 crc = new CRC32();
+		for (int bank = 0; bank < cart.getRomBanks(); bank++) {
+			crc.update(cart.getRomBankData(bank), cart.getRomBankOffset(bank), Cartridge.ROM_BANK_SIZE);
+		}
+		return (int) crc.getValue();
+	}
+	
+	public int getPosition() { return position; }
+	public int getLength() { return length; }
+	public int getInput(int frame) { return inputs[frame] & 0xFF; }
+	public int getKeyframeInterval() { return keyframeInterval; }
+	public int getKeyframes() { return keyframes; }
+}
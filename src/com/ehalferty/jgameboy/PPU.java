@@ -0,0 +1,361 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.nio.ByteBuffer;
+
+// Picture processing unit. Steps through the OAM search / transfer / HBlank
+// modes of each scanline on scheduler events, updating LY and STAT, and
+// renders each line into a packed framebuffer of shades 0 (white) to 3
+// (black) when the line's transfer period ends. Tiles are decoded into a
+// cache that is only refreshed after the CPU writes to their tile data.
+public class PPU implements IoHandler {
+	
+	public static final int WIDTH = 160;
+	public static final int HEIGHT = 144;
+	
+	// Registers
+	public static final int LCDC = 0xFF40;
+	public static final int STAT = 0xFF41;
+	public static final int SCY = 0xFF42;
+	public static final int SCX = 0xFF43;
+	public static final int LY = 0xFF44;
+	public static final int LYC = 0xFF45;
+	public static final int DMA = 0xFF46;
+	public static final int BGP = 0xFF47;
+	public static final int OBP0 = 0xFF48;
+	public static final int OBP1 = 0xFF49;
+	public static final int WY = 0xFF4A;
+	public static final int WX = 0xFF4B;
+	
+	// STAT modes
+	public static final int MODE_HBLANK = 0;
+	public static final int MODE_VBLANK = 1;
+	public static final int MODE_OAM = 2;
+	public static final int MODE_TRANSFER = 3;
+	
+	// Clock cycles spent in each mode of a visible line, and per whole line
+	private static final int OAM_CYCLES = 80;
+	private static final int TRANSFER_CYCLES = 172;
+	private static final int HBLANK_CYCLES = 204;
+	private static final int LINE_CYCLES = 456;
+	private static final int LINES = 154;
+	
+	private static final int TILES = 384;
+	private static final int MAX_SPRITES_PER_LINE = 10;
+	
+	private final MMU mmu;
+	private final Scheduler scheduler;
+	private final Interrupts interrupts;
+	
+	// One byte per pixel, row-major
+	private final byte [] frame = new byte[WIDTH * HEIGHT];
+	
+	// Colour numbers (0-3, before palette) of every tile, 64 per tile
+	private final byte [] tileCache = new byte[TILES * 64];
+	private final boolean [] tileDirty = new boolean[TILES];
+	
+	// Scratch for one scanline
+	private final byte [] bgColor = new byte[WIDTH];
+	private final int [] lineSprites = new int[MAX_SPRITES_PER_LINE];
+	
+	private int mode;
+	private int ly;
+	private int windowLine;
+	private long frameCount = 0;
+	
+	public PPU(MMU mmu, Scheduler scheduler, Interrupts interrupts) {
+		this.mmu = mmu;
+		this.scheduler = scheduler;
+		this.interrupts = interrupts;
+		for (int i = 0; i < TILES; i++) tileDirty[i] = true;
+		scheduler.setHandler(Scheduler.EVENT_PPU, this::onEvent);
+		mmu.setTileDataHandler(this);
+		mmu.setIoHandler(LCDC, this);
+		mmu.setIoHandler(STAT, this);
+		mmu.setIoHandler(LY, this);
+		mmu.setIoHandler(LYC, this);
+		mmu.setIoHandler(DMA, this);
+		if (lcdEnabled()) startFrame(scheduler.getNow());
+		else stop();
+	}
+	
+	@Override
+	public void ioWrite(int addr, int value) {
+		if (addr < 0x9800) {
+			tileDirty[(addr - 0x8000) >> 4] = true;
+			return;
+		}
+		switch (addr) {
+		case LCDC:
+			boolean running = scheduler.isScheduled(Scheduler.EVENT_PPU);
+			if (lcdEnabled() && !running) startFrame(scheduler.getNow());
+			else if (!lcdEnabled() && running) stop();
+			break;
+		case STAT:
+			// Mode and coincidence bits are read-only
+			updateStat();
+			break;
+		case LY:
+			// Read-only
+			mmu.setIoRegister(LY, ly);
+			break;
+		case LYC:
+			compareLy();
+			break;
+		case DMA:
+			// Copy 160 bytes into OAM at once rather than over 160 cycles
+			int src = value << 8;
+			for (int i = 0; i < 0xA0; i++) {
+				mmu.writeByte(0xFE00 + i, mmu.readByte(src + i));
+			}
+			break;
+		}
+	}
+	
+	private void onEvent(long due) {
+		switch (mode) {
+		case MODE_OAM:
+			setMode(MODE_TRANSFER);
+			scheduler.schedule(Scheduler.EVENT_PPU, due + TRANSFER_CYCLES);
+			break;
+		case MODE_TRANSFER:
+			renderLine();
+			setMode(MODE_HBLANK);
+			if ((stat() & 0x08) != 0) interrupts.request(Interrupts.STAT);
+			scheduler.schedule(Scheduler.EVENT_PPU, due + HBLANK_CYCLES);
+			break;
+		case MODE_HBLANK:
+			setLy(ly + 1);
+			if (ly == HEIGHT) {
+				setMode(MODE_VBLANK);
+				frameCount++;
+				interrupts.request(Interrupts.VBLANK);
+				if ((stat() & 0x10) != 0) interrupts.request(Interrupts.STAT);
+				scheduler.schedule(Scheduler.EVENT_PPU, due + LINE_CYCLES);
+			} else {
+				setMode(MODE_OAM);
+				if ((stat() & 0x20) != 0) interrupts.request(Interrupts.STAT);
+				scheduler.schedule(Scheduler.EVENT_PPU, due + OAM_CYCLES);
+			}
+			break;
+		case MODE_VBLANK:
+			if (ly + 1 == LINES) {
+				startFrame(due);
+			} else {
+				setLy(ly + 1);
+				scheduler.schedule(Scheduler.EVENT_PPU, due + LINE_CYCLES);
+			}
+			break;
+		}
+	}
+	
+	private void startFrame(long at) {
+		windowLine = 0;
+		setLy(0);
+		setMode(MODE_OAM);
+		if ((stat() & 0x20) != 0) interrupts.request(Interrupts.STAT);
+		scheduler.schedule(Scheduler.EVENT_PPU, at + OAM_CYCLES);
+	}
+	
+	// LCD switched off: LY sits at 0 in HBlank until it is switched back on
+	private void stop() {
+		scheduler.cancel(Scheduler.EVENT_PPU);
+		setLy(0);
+		setMode(MODE_HBLANK);
+	}
+	
+	private void setMode(int m) {
+		mode = m;
+		updateStat();
+	}
+	
+	private void setLy(int line) {
+		ly = line;
+		mmu.setIoRegister(LY, ly);
+		compareLy();
+	}
+	
+	private void compareLy() {
+		boolean match = (ly == reg(LYC));
+		updateStat();
+		if (match && (stat() & 0x40) != 0) interrupts.request(Interrupts.STAT);
+	}
+	
+	private void updateStat() {
+		int coincidence = (ly == reg(LYC)) ? 0x04 : 0;
+		mmu.setIoRegister(STAT, 0x80 | (stat() & 0x78) | coincidence | mode);
+	}
+	
+	// Draw background, window and sprites for the current line
+	private void renderLine() {
+		int lcdc = reg(LCDC);
+		int row = ly * WIDTH;
+		
+		if ((lcdc & 0x01) != 0) {
+			int bgp = reg(BGP);
+			int map = ((lcdc & 0x08) != 0) ? 0x9C00 : 0x9800;
+			int y = (ly + reg(SCY)) & 0xFF;
+			int scx = reg(SCX);
+			for (int x = 0; x < WIDTH; x++) {
+				int bx = (x + scx) & 0xFF;
+				int c = tilePixel(lcdc, map + ((y >> 3) << 5) + (bx >> 3), bx & 7, y & 7);
+				bgColor[x] = (byte) c;
+				frame[row + x] = (byte) ((bgp >> (c << 1)) & 0x03);
+			}
+			
+			int wy = reg(WY);
+			int wx = reg(WX) - 7;
+			if ((lcdc & 0x20) != 0 && ly >= wy && wx < WIDTH) {
+				int wmap = ((lcdc & 0x40) != 0) ? 0x9C00 : 0x9800;
+				int y2 = windowLine++;
+				for (int x = Math.max(wx, 0); x < WIDTH; x++) {
+					int px = x - wx;
+					int c = tilePixel(lcdc, wmap + ((y2 >> 3) << 5) + (px >> 3), px & 7, y2 & 7);
+					bgColor[x] = (byte) c;
+					frame[row + x] = (byte) ((bgp >> (c << 1)) & 0x03);
+				}
+			}
+		} else {
+			// Background off shows as white, and sprites are always on top
+			for (int x = 0; x < WIDTH; x++) {
+				bgColor[x] = 0;
+				frame[row + x] = 0;
+			}
+		}
+		
+		if ((lcdc & 0x02) != 0) renderSprites(lcdc, row);
+	}
+	
+	private void renderSprites(int lcdc, int row) {
+		int height = ((lcdc & 0x04) != 0) ? 16 : 8;
+		
+		// The first ten sprites in OAM order that touch this line
+		int count = 0;
+		for (int i = 0; i < 40 && count < MAX_SPRITES_PER_LINE; i++) {
+			int top = reg(0xFE00 + i * 4) - 16;
+			if (ly >= top && ly < top + height) lineSprites[count++] = i;
+		}
+		
+		// Sprites with lower X win, then lower OAM index. Draw the winners
+		// last by sorting into descending priority (insertion sort, n <= 10).
+		for (int i = 1; i < count; i++) {
+			int s = lineSprites[i];
+			int j = i - 1;
+			while (j >= 0 && higherPriority(lineSprites[j], s)) {
+				lineSprites[j + 1] = lineSprites[j];
+				j--;
+			}
+			lineSprites[j + 1] = s;
+		}
+		
+		for (int k = 0; k < count; k++) {
+			int oam = 0xFE00 + lineSprites[k] * 4;
+			int top = reg(oam) - 16;
+			int left = reg(oam + 1) - 8;
+			int tile = reg(oam + 2);
+			int attr = reg(oam + 3);
+			int palette = reg(((attr & 0x10) != 0) ? OBP1 : OBP0);
+			
+			int y = ly - top;
+			if ((attr & 0x40) != 0) y = height - 1 - y;
+			if (height == 16) tile = (tile & 0xFE) | (y >> 3);
+			
+			int base = decodedTile(tile) + ((y & 7) << 3);
+			for (int px = 0; px < 8; px++) {
+				int x = left + px;
+				if (x < 0 || x >= WIDTH) continue;
+				int c = tileCache[base + (((attr & 0x20) != 0) ? 7 - px : px)];
+				if (c == 0) continue;
+				if ((attr & 0x80) != 0 && bgColor[x] != 0) continue;
+				frame[row + x] = (byte) ((palette >> (c << 1)) & 0x03);
+			}
+		}
+	}
+	
+	private boolean higherPriority(int a, int b) {
+		int xa = reg(0xFE00 + a * 4 + 1);
+		int xb = reg(0xFE00 + b * 4 + 1);
+		return (xa < xb) || (xa == xb && a < b);
+	}
+	
+	// Colour number of one background/window pixel, given its tile map entry
+	private int tilePixel(int lcdc, int mapAddr, int x, int y) {
+		int index = reg(mapAddr);
+		
+		// LCDC bit 4 clear: tiles 0-127 come from 0x9000, 128-255 from 0x8800
+		int tile = ((lcdc & 0x10) != 0) ? index : 256 + (byte) index;
+		return tileCache[decodedTile(tile) + (y << 3) + x];
+	}
+	
+	// Offset of a tile in the cache, decoding it first if it has changed
+	private int decodedTile(int tile) {
+		int base = tile << 6;
+		if (tileDirty[tile]) {
+			int addr = 0x8000 + (tile << 4);
+			for (int y = 0; y < 8; y++) {
+				int lo = reg(addr + y * 2);
+				int hi = reg(addr + y * 2 + 1);
+				for (int x = 0; x < 8; x++) {
+					int bit = 7 - x;
+					tileCache[base + (y << 3) + x] = (byte) ((((hi >> bit) & 1) << 1) | ((lo >> bit) & 1));
+				}
+			}
+			tileDirty[tile] = false;
+		}
+		return base;
+	}
+	
+	private int reg(int addr) { return mmu.readByte(addr) & 0xFF; }
+	private boolean lcdEnabled() { return (reg(LCDC) & 0x80) != 0; }
+	private int stat() { return reg(STAT); }
+	
+	// Save state: the mode machine, plus the framebuffer packed four pixels
+	// to a byte so a restored state can be shown before the next frame
+	void saveState(ByteBuffer buf) {
+		buf.put((byte) mode).put((byte) ly).put((byte) windowLine).putLong(frameCount);
+		for (int i = 0; i < frame.length; i += 4) {
+			buf.put((byte) (frame[i] | (frame[i + 1] << 2) | (frame[i + 2] << 4) | (frame[i + 3] << 6)));
+		}
+	}
+	
+	void loadState(ByteBuffer buf) {
+		mode = buf.get();
+		ly = buf.get() & 0xFF;
+		windowLine = buf.get() & 0xFF;
+		frameCount = buf.getLong();
+		for (int i = 0; i < frame.length; i += 4) {
+			int b = buf.get();
+			frame[i] = (byte) (b & 3);
+			frame[i + 1] = (byte) ((b >> 2) & 3);
+			frame[i + 2] = (byte) ((b >> 4) & 3);
+			frame[i + 3] = (byte) ((b >> 6) & 3);
+		}
+		
+		// VRAM has been replaced underneath the cache
+		for (int i = 0; i < TILES; i++) tileDirty[i] = true;
+	}
+	
+	static int stateSize() { return 11 + WIDTH * HEIGHT / 4; }
+	
+	public byte [] getFrameBuffer() { return frame; }
+	public long getFrameCount() { return frameCount; }
+	public int getMode() { return mode; }
+	public int getLy() { return ly; }
+}
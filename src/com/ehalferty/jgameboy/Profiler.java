@@ -0,0 +1,492 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+// Where the guest program spends its time. While counting, the profiler
+// sits on the CPU's trace hook and sees every instruction: it keeps an
+// execution count and a cycle total for each address, cycles for each ROM
+// bank, and a call graph built by following CALL, RST, RET and interrupts.
+// Cycles are only known once the next instruction starts, so each
+// instruction is charged with everything up to then, including an
+// interrupt it let in or the time a HALT sat out.
+//
+// The trace hook already exists and is a single null check when unused,
+// and tracing makes the emulator step one instruction at a time, so
+// turning counting off costs nothing at all. Counting on, the profiled
+// program runs in the interpreter.
+//
+// Instruction, frame and interrupt rates come from counters the emulator
+// keeps anyway, so they are available with counting off. Those counters
+// move on as each run returns, so run a frame at a time to see them live.
+// Everything is published as the ProfilerMXBean and as JFR events, which
+// JFR only asks for while a recording has them enabled. Readers on other
+// threads see the counts as they stand, without locking; they're
+// statistics.
+public class Profiler implements TraceSink, ProfilerMXBean {
+	
+	public static final int HOT_SPOTS = 20;
+	
+	// Calls followed at once; deeper ones push out the outermost
+	private static final int MAX_DEPTH = 256;
+	
+	// Rates are measured over at least this long. JFR asks every second,
+	// give or take, so it mustn't be a whole second.
+	private static final long MIN_RATE_PERIOD = 500000000L;
+	
+	// Rates over the last period, committed every second
+	@Name("com.ehalferty.jgameboy.Rates")
+	@Label("Emulation Rates")
+	@Category({ "jGameboy", "Profiler" })
+	@Period("1 s")
+	@StackTrace(false)
+	static class RateEvent extends Event {
+		@Label("Instructions per Second") double instructionsPerSecond;
+		@Label("Frames per Second") double framesPerSecond;
+		@Label("Interrupts per Second") double interruptsPerSecond;
+	}
+	
+	// The most executed addresses since the last of these, while counting
+	@Name("com.ehalferty.jgameboy.HotSpot")
+	@Label("Guest Hot Spot")
+	@Description("An address among the most executed guest instructions in the last period")
+	@Category({ "jGameboy", "Profiler" })
+	@Period("1 s")
+	@StackTrace(false)
+	static class HotSpotEvent extends Event {
+		@Label("Address") int pc;
+		@Label("Instructions") long instructions;
+		@Label("Cycles") long cycles;
+	}
+	
+	private final Emulator emu;
+	
+	// Also given every instruction, so tracing and profiling can go together
+	private final TraceSink next;
+	
+	private CPU cpu;
+	private MMU mmu;
+	private Scheduler scheduler;
+	private Interrupts interrupts;
+	private volatile boolean counting = false;
+	private volatile boolean resetRequested = false;
+	
+	// Per address, and per ROM bank with code run from RAM last
+	private final long [] instructionCount = new long[0x10000];
+	private final long [] cycleCount = new long[0x10000];
+	private long [] bankCycles = new long[1];
+	
+	// The previous instruction, which this one's start completes
+	private int lastPc = -1;
+	private int lastBank;
+	private int lastSp;
+	private int lastInstr;
+	private long lastNow;
+	private long lastTaken;
+	
+	// Calls in progress: the address called, SP once the return address
+	// was pushed, the call graph edge and the cycle it started
+	private final int [] frameEntry = new int[MAX_DEPTH];
+	private final int [] frameSp = new int[MAX_DEPTH];
+	private final int [] frameEdge = new int[MAX_DEPTH];
+	private final long [] frameStart = new long[MAX_DEPTH];
+	private int depth = 0;
+	private int rootEntry;
+	
+	// Call graph edges, caller << 16 | callee, in an open-addressed table
+	private int [] edgeKey = newEdgeTable(1024);
+	private long [] edgeCalls = new long[1024];
+	private long [] edgeCycles = new long[1024];
+	private int edges = 0;
+	
+	// Rates, and the counters they were last measured from
+	private long rateFrom = System.nanoTime();
+	private long rateInstructions, rateFrames;
+	private final long [] rateTaken = new long[5];
+	private double instructionsPerSecond, framesPerSecond;
+	private final double [] interruptsPerSecond = new double[5];
+	
+	// Counts as of the last HotSpotEvents, to report each period's own
+	private final long [] reportedCount = new long[0x10000];
+	private final long [] reportedCycles = new long[0x10000];
+	
+	private ObjectName objectName;
+	private final Runnable rateHook = this::commitRates;
+	private final Runnable hotSpotHook = this::commitHotSpots;
+	
+	public Profiler(Emulator emu) {
+		this(emu, null);
+	}
+	
+	public Profiler(Emulator emu, TraceSink next) {
+		this.emu = emu;
+		this.next = next;
+	}
+	
+	// Start counting from the next instruction. Call on the thread running
+	// the emulator, between runs.
+	public void start() {
+		cpu = emu.getCPU();
+		mmu = emu.getMMU();
+		scheduler = emu.getScheduler();
+		interrupts = emu.getInterrupts();
+		int banks = mmu.getCartridge().getRomBanks() + 1;
+		if (bankCycles.length != banks) bankCycles = new long[banks];
+		lastPc = -1;
+		lastTaken = interrupts.getTaken();
+		depth = 0;
+		rootEntry = cpu.getPC();
+		counting = true;
+		emu.setTraceSink(this);
+	}
+	
+	// Stop counting, keeping the counts, and hand the trace hook back
+	public void stop() {
+		emu.setTraceSink(next);
+		counting = false;
+	}
+	
+	@Override
+	public void trace(int pc, int sp, int instr, int af, int bc, int de, int hl) {
+		if (resetRequested) clear();
+		long now = scheduler.getNow();
+		if (lastPc >= 0) {
+			long c = now - lastNow;
+			cycleCount[lastPc] += c;
+			bankCycles[lastBank] += c;
+			followCalls(pc, sp, now);
+		}
+		instructionCount[pc]++;
+		lastPc = pc;
+		lastBank = (pc < 0x4000) ? mmu.getRomBank(0) : (pc < 0x8000) ? mmu.getRomBank(1) : bankCycles.length - 1;
+		lastSp = sp;
+		lastInstr = instr;
+		lastNow = now;
+		if (next != null) next.trace(pc, sp, instr, af, bc, de, hl);
+	}
+	
+	// See what the last instruction did to the call stack: a taken CALL or
+	// RST pushed a return address, a taken RET popped one. An interrupt
+	// may have pushed another on top since; the CPU's count of interrupts
+	// taken says so.
+	private void followCalls(int pc, int sp, long now) {
+		long taken = interrupts.getTaken();
+		boolean interrupted = taken != lastTaken;
+		lastTaken = taken;
+		int spBefore = interrupted ? (sp + 2) & 0xFFFF : sp;
+		
+		int op = lastInstr;
+		if (op == 0xCD || op == 0xC4 || op == 0xCC || op == 0xD4 || op == 0xDC || (op & 0xC7) == 0xC7) {
+			if (spBefore == ((lastSp - 2) & 0xFFFF)) {
+				// Where the call went; if an interrupt came straight after,
+				// that's the address it will return to
+				int callee = interrupted ? (returnAddress(sp) + 1) & 0xFFFF : pc;
+				enter(callee, spBefore, now);
+			}
+		} else if (op == 0xC9 || op == 0xD9 || op == 0xC0 || op == 0xC8 || op == 0xD0 || op == 0xD8) {
+			if (spBefore == ((lastSp + 2) & 0xFFFF)) leave(lastSp, now);
+		}
+		if (interrupted) enter(pc, sp, now);
+	}
+	
+	// Pushed as CPU.push stores them, high byte first, and one short of
+	// where execution resumes
+	private int returnAddress(int sp) {
+		return (mmu.readByte(sp) << 8) | mmu.readByte((sp + 1) & 0xFFFF);
+	}
+	
+	private void enter(int callee, int sp, long now) {
+		int caller = (depth > 0) ? frameEntry[depth - 1] : rootEntry;
+		int edge = edge(caller, callee);
+		edgeCalls[edge]++;
+		if (depth == MAX_DEPTH) {
+			System.arraycopy(frameEntry, 1, frameEntry, 0, MAX_DEPTH - 1);
+			System.arraycopy(frameSp, 1, frameSp, 0, MAX_DEPTH - 1);
+			System.arraycopy(frameEdge, 1, frameEdge, 0, MAX_DEPTH - 1);
+			System.arraycopy(frameStart, 1, frameStart, 0, MAX_DEPTH - 1);
+			depth--;
+		}
+		frameEntry[depth] = callee;
+		frameSp[depth] = sp;
+		frameEdge[depth] = edge;
+		frameStart[depth] = now;
+		depth++;
+	}
+	
+	// A return through the address at sp ends that call, and any below it
+	// that were left without returning (code that drops its return
+	// address and jumps instead)
+	private void leave(int sp, long now) {
+		while (depth > 0 && frameSp[depth - 1] <= sp) {
+			depth--;
+			edgeCycles[frameEdge[depth]] += now - frameStart[depth];
+		}
+	}
+	
+	private int edge(int caller, int callee) {
+		int key = (caller << 16) | callee;
+		int mask = edgeKey.length - 1;
+		int i = (key * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(edgeKey.length));
+		while (edgeKey[i] != key) {
+			if (edgeKey[i] == -1) {
+				if (2 * (edges + 1) > edgeKey.length) {
+					growEdges();
+					return edge(caller, callee);
+				}
+				edgeKey[i] = key;
+				edges++;
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+	
+	private void growEdges() {
+		int [] oldKey = edgeKey;
+		long [] oldCalls = edgeCalls;
+		long [] oldCycles = edgeCycles;
+		int n = oldKey.length * 2;
+		edgeKey = newEdgeTable(n);
+		edgeCalls = new long[n];
+		edgeCycles = new long[n];
+		edges = 0;
+		int [] moved = new int[oldKey.length];
+		for (int i = 0; i < oldKey.length; i++) {
+			if (oldKey[i] == -1) continue;
+			int e = edge(oldKey[i] >>> 16, oldKey[i] & 0xFFFF);
+			edgeCalls[e] = oldCalls[i];
+			edgeCycles[e] = oldCycles[i];
+			moved[i] = e;
+		}
+		// Calls in progress point at edges by index
+		for (int d = 0; d < depth; d++) frameEdge[d] = moved[frameEdge[d]];
+	}
+	
+	private static int [] newEdgeTable(int size) {
+		int [] table = new int[size];
+		Arrays.fill(table, -1);
+		return table;
+	}
+	
+	@Override
+	public void reset() {
+		if (counting) {
+			resetRequested = true;
+		} else {
+			clear();
+		}
+	}
+	
+	private void clear() {
+		resetRequested = false;
+		Arrays.fill(instructionCount, 0);
+		Arrays.fill(cycleCount, 0);
+		Arrays.fill(bankCycles, 0);
+		Arrays.fill(reportedCount, 0);
+		Arrays.fill(reportedCycles, 0);
+		Arrays.fill(edgeKey, -1);
+		Arrays.fill(edgeCalls, 0);
+		Arrays.fill(edgeCycles, 0);
+		edges = 0;
+		depth = 0;
+		lastPc = -1;
+	}
+	
+	// Measure the rates again if the last measurement is old enough
+	private synchronized void updateRates() {
+		long now = System.nanoTime();
+		long elapsed = now - rateFrom;
+		if (elapsed < MIN_RATE_PERIOD) return;
+		double seconds = elapsed / 1e9;
+		long instructions = emu.getInstructions();
+		long frames = emu.getFrame();
+		instructionsPerSecond = (instructions - rateInstructions) / seconds;
+		framesPerSecond = (frames - rateFrames) / seconds;
+		rateInstructions = instructions;
+		rateFrames = frames;
+		for (int i = 0; i < rateTaken.length; i++) {
+			long taken = emu.getInterrupts().getTaken(1 << i);
+			interruptsPerSecond[i] = (taken - rateTaken[i]) / seconds;
+			rateTaken[i] = taken;
+		}
+		rateFrom = now;
+	}
+	
+	private void commitRates() {
+		updateRates();
+		RateEvent event = new RateEvent();
+		event.instructionsPerSecond = getInstructionsPerSecond();
+		event.framesPerSecond = getFramesPerSecond();
+		event.interruptsPerSecond = getInterruptsPerSecond();
+		event.commit();
+	}
+	
+	private void commitHotSpots() {
+		for (int pc : top(instructionCount, reportedCount, HOT_SPOTS)) {
+			HotSpotEvent event = new HotSpotEvent();
+			event.pc = pc;
+			event.instructions = instructionCount[pc] - reportedCount[pc];
+			event.cycles = cycleCount[pc] - reportedCycles[pc];
+			event.commit();
+		}
+		System.arraycopy(instructionCount, 0, reportedCount, 0, reportedCount.length);
+		System.arraycopy(cycleCount, 0, reportedCycles, 0, reportedCycles.length);
+	}
+	
+	// Indices of the n largest counts (less base, if given) that aren't
+	// zero, largest first
+	private static int [] top(long [] counts, long [] base, int n) {
+		int [] best = new int[n];
+		long [] bestCount = new long[n];
+		int found = 0;
+		for (int i = 0; i < counts.length; i++) {
+			long c = counts[i] - (base != null ? base[i] : 0);
+			if (c <= 0 || (found == n && c <= bestCount[n - 1])) continue;
+			int at = Math.min(found, n - 1);
+			while (at > 0 && bestCount[at - 1] < c) {
+				best[at] = best[at - 1];
+				bestCount[at] = bestCount[at - 1];
+				at--;
+			}
+			best[at] = i;
+			bestCount[at] = c;
+			if (found < n) found++;
+		}
+		return Arrays.copyOf(best, found);
+	}
+	
+	// Publish as an MBean and JFR events under the given name
+	public void register(String name) {
+		try {
+			objectName = new ObjectName("com.ehalferty.jgameboy:type=Profiler,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		} catch (JMException e) {
+			throw new IllegalStateException("Can't register the profiler MBean", e);
+		}
+		FlightRecorder.addPeriodicEvent(RateEvent.class, rateHook);
+		FlightRecorder.addPeriodicEvent(HotSpotEvent.class, hotSpotHook);
+	}
+	
+	public void unregister() {
+		FlightRecorder.removePeriodicEvent(rateHook);
+		FlightRecorder.removePeriodicEvent(hotSpotHook);
+		if (objectName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			// Already gone
+		}
+		objectName = null;
+	}
+	
+	// Print the hot spots, the banks and the call graph
+	public void report(PrintStream out) {
+		out.println("Hot spots:");
+		for (String line : getHotSpots()) out.println("  " + line);
+		out.println("Cycles by ROM bank:");
+		for (int bank = 0; bank < bankCycles.length; bank++) {
+			if (bankCycles[bank] == 0) continue;
+			out.printf("  %s: %d%n", bank == bankCycles.length - 1 ? "RAM" : "bank " + bank, bankCycles[bank]);
+		}
+		out.println("Call graph:");
+		for (String line : getCallGraph()) out.println("  " + line);
+	}
+	
+	@Override
+	public boolean isCounting() { return counting; }
+	
+	@Override
+	public long getInstructions() { return emu.getInstructions(); }
+	
+	@Override
+	public long getCycles() { return emu.getCycles(); }
+	
+	@Override
+	public long getFrames() { return emu.getFrame(); }
+	
+	@Override
+	public double getInstructionsPerSecond() {
+		updateRates();
+		return instructionsPerSecond;
+	}
+	
+	@Override
+	public double getFramesPerSecond() {
+		updateRates();
+		return framesPerSecond;
+	}
+	
+	@Override
+	public double getInterruptsPerSecond() {
+		double total = 0;
+		for (double rate : getInterruptsPerSecondBySource()) total += rate;
+		return total;
+	}
+	
+	@Override
+	public synchronized double [] getInterruptsPerSecondBySource() {
+		updateRates();
+		return interruptsPerSecond.clone();
+	}
+	
+	@Override
+	public String [] getHotSpots() {
+		int [] pcs = top(instructionCount, null, HOT_SPOTS);
+		String [] lines = new String[pcs.length];
+		for (int i = 0; i < pcs.length; i++) {
+			lines[i] = String.format("%04X: %d instructions, %d cycles", pcs[i], instructionCount[pcs[i]], cycleCount[pcs[i]]);
+		}
+		return lines;
+	}
+	
+	@Override
+	public long [] getBankCycles() { return bankCycles.clone(); }
+	
+	@Override
+	public String [] getCallGraph() {
+		int [] es = top(edgeCycles, null, HOT_SPOTS);
+		String [] lines = new String[es.length];
+		for (int i = 0; i < es.length; i++) {
+			int key = edgeKey[es[i]];
+			lines[i] = String.format("%04X -> %04X: %d calls, %d cycles",
+					key >>> 16, key & 0xFFFF, edgeCalls[es[i]], edgeCycles[es[i]]);
+		}
+		return lines;
+	}
+	
+	// Raw counts, by address
+	public long getInstructionCount(int pc) { return instructionCount[pc & 0xFFFF]; }
+	public long getCycleCount(int pc) { return cycleCount[pc & 0xFFFF]; }
+}
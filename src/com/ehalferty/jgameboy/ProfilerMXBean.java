@@ -0,0 +1,51 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+// What the profiler shows over JMX, as the MBean
+// com.ehalferty.jgameboy:type=Profiler. The rates are always live; the hot
+// spots, bank cycles and call graph fill in while counting is on.
+public interface ProfilerMXBean {
+	
+	boolean isCounting();
+	
+	long getInstructions();
+	long getCycles();
+	long getFrames();
+	
+	// Over the last second or so
+	double getInstructionsPerSecond();
+	double getFramesPerSecond();
+	double getInterruptsPerSecond();
+	
+	// VBLANK, STAT, TIMER, SERIAL and JOYPAD, in that order
+	double [] getInterruptsPerSecondBySource();
+	
+	// The most executed addresses, most first
+	String [] getHotSpots();
+	
+	// Cycles spent running code from each ROM bank, then from RAM
+	long [] getBankCycles();
+	
+	// The calls (and interrupts) whose callees took the most cycles
+	String [] getCallGraph();
+	
+	// Clear the counts, before the next instruction
+	void reset();
+}
@@ -0,0 +1,409 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Runs every ROM in a directory headless for a fixed number of frames and
+// checks what it showed and printed against a golden manifest. Every few
+// frames the framebuffer, and all the bytes sent out of the serial port so
+// far, are hashed with CRC-32. Each ROM is one task on a work-stealing pool,
+// so the whole farm takes about as long as the total divided by the cores,
+// or as the slowest ROM if that is longer.
+//
+// The manifest is a text file with a line per checkpoint: the ROM's file
+// name, the frame, and the two CRCs in hex, separated by tabs. -update
+// rewrites it from this run instead of checking against it. A ROM with no
+// lines in the manifest is reported as new rather than failing, and a ROM in
+// the manifest with no file as an error.
+//
+// ROMs are read into memory and run without battery saves, so a run never
+// depends on the one before it.
+// Usage: RegressionFarm [rom-dir] [-frames n] [-every n] [-golden manifest] [-update]
+//        [-threads n] [-junit report.xml] [-json report.json]
+public class RegressionFarm implements AutoCloseable {
+	
+	public static final String MANIFEST_NAME = "golden.txt";
+	
+	public enum Status { PASS, FAIL, NEW, ERROR }
+	
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	
+	private final int frames;
+	private final int every;
+	private final ForkJoinPool pool;
+	
+	public RegressionFarm(int frames, int every, int threads) {
+		this.frames = frames;
+		this.every = Math.max(1, every);
+		pool = new ForkJoinPool(threads);
+	}
+	
+	// What the screen and serial port held at the end of one frame
+	public static final class Checkpoint {
+		public final long frame;
+		public final int screenCrc;
+		public final int serialCrc;
+		
+		public Checkpoint(long frame, int screenCrc, int serialCrc) {
+			this.frame = frame;
+			this.screenCrc = screenCrc;
+			this.serialCrc = serialCrc;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Checkpoint)) return false;
+			Checkpoint c = (Checkpoint) o;
+			return frame == c.frame && screenCrc == c.screenCrc && serialCrc == c.serialCrc;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Long.hashCode(frame) * 31 * 31 + screenCrc * 31 + serialCrc;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("frame %d screen %08x serial %08x", frame, screenCrc, serialCrc);
+		}
+	}
+	
+	// One ROM's run, and how it compared with the manifest
+	public static final class Result {
+		public final String rom;
+		public final List<Checkpoint> checkpoints = new ArrayList<>();
+		private String serial = "";
+		private long instructions = 0;
+		private long nanos = 0;
+		private long cpuNanos = 0;
+		private Status status = Status.NEW;
+		private String message = null;
+		
+		Result(String rom) {
+			this.rom = rom;
+		}
+		
+		public Status getStatus() { return status; }
+		public String getMessage() { return message; }
+		public String getSerialText() { return serial; }
+		public long getInstructions() { return instructions; }
+		public long getNanos() { return nanos; }
+		public long getCpuNanos() { return cpuNanos; }
+		
+		// Compare the checkpoints with the golden ones, in order
+		void check(List<Checkpoint> golden) {
+			if (status == Status.ERROR) return;
+			if (golden == null) {
+				status = Status.NEW;
+				message = "no golden checkpoints";
+				return;
+			}
+			status = Status.PASS;
+			for (int i = 0; i < Math.max(checkpoints.size(), golden.size()); i++) {
+				Checkpoint got = (i < checkpoints.size()) ? checkpoints.get(i) : null;
+				Checkpoint want = (i < golden.size()) ? golden.get(i) : null;
+				if (got != null && got.equals(want)) continue;
+				status = Status.FAIL;
+				if (got == null) {
+					message = "stopped before the checkpoint at frame " + want.frame;
+				} else if (want == null) {
+					message = "no golden checkpoint for " + got;
+				} else {
+					message = "expected " + want + ", got " + got;
+				}
+				return;
+			}
+		}
+	}
+	
+	// Run every ROM and wait for them all. Results are in the order given.
+	public List<Result> run(List<Path> roms) {
+		List<ForkJoinTask<Result>> tasks = new ArrayList<>(roms.size());
+		for (Path rom : roms) {
+			tasks.add(pool.submit(() -> run(rom)));
+		}
+		List<Result> results = new ArrayList<>(roms.size());
+		for (ForkJoinTask<Result> t : tasks) results.add(t.join());
+		return results;
+	}
+	
+	// Run one ROM to the last checkpoint, or until its CPU stops
+	public Result run(Path rom) {
+		Result r = new Result(rom.getFileName().toString());
+		long start = System.nanoTime();
+		long cpuStart = THREADS.getCurrentThreadCpuTime();
+		try {
+			Emulator emu = new Emulator();
+			emu.init(Files.readAllBytes(rom));
+			while (emu.getFrame() < frames && emu.getCPU().isRunning()) {
+				emu.runFrames((int) Math.min(every - emu.getFrame() % every, frames - emu.getFrame()));
+				r.checkpoints.add(new Checkpoint(emu.getFrame(), crc(emu.getPPU().getFrameBuffer()),
+						emu.getSerial().getOutputCrc()));
+			}
+			r.serial = printable(emu.getSerial().getOutput());
+			r.instructions = emu.getInstructions();
+		} catch (IOException | RuntimeException e) {
+			r.status = Status.ERROR;
+			r.message = e.toString();
+		}
+		r.nanos = System.nanoTime() - start;
+		r.cpuNanos = THREADS.getCurrentThreadCpuTime() - cpuStart;
+		return r;
+	}
+	
+	private static int crc(byte [] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+	
+	// Serial output as text: test ROMs print ASCII, anything else shows as '.'
+	private static String printable(byte [] data) {
+		StringBuilder sb = new StringBuilder(data.length);
+		for (byte b : data) {
+			char c = (char) (b & 0xFF);
+			sb.append((c >= 0x20 && c < 0x7F) || c == '\n' || c == '\t' ? c : '.');
+		}
+		return sb.toString();
+	}
+	
+	@Override
+	public void close() {
+		pool.shutdown();
+		try {
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	// Golden checkpoints by ROM name, in frame order. A missing file is empty.
+	public static Map<String, List<Checkpoint>> readManifest(Path file) throws IOException {
+		Map<String, List<Checkpoint>> golden = new TreeMap<>();
+		if (!Files.exists(file)) return golden;
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			String [] f = line.split("\t");
+			if (f.length != 4) throw new IOException(file + ": bad line: " + line);
+			golden.computeIfAbsent(f[0], k -> new ArrayList<>()).add(new Checkpoint(Long.parseLong(f[1]),
+					Integer.parseUnsignedInt(f[2], 16), Integer.parseUnsignedInt(f[3], 16)));
+		}
+		return golden;
+	}
+	
+	public static void writeManifest(Path file, Map<String, List<Checkpoint>> golden) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+			out.println("# rom\tframe\tscreen CRC-32\tserial CRC-32");
+			for (Map.Entry<String, List<Checkpoint>> e : golden.entrySet()) {
+				for (Checkpoint c : e.getValue()) {
+					out.printf("%s\t%d\t%08x\t%08x%n", e.getKey(), c.frame, c.screenCrc, c.serialCrc);
+				}
+			}
+		}
+	}
+	
+	public static void writeJson(Path file, List<Result> results, long wallNanos, int threads) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+			out.printf("{%n  \"threads\": %d,%n  \"wallNanos\": %d,%n  \"roms\": [", threads, wallNanos);
+			for (int i = 0; i < results.size(); i++) {
+				Result r = results.get(i);
+				out.printf("%s%n    {\"rom\": %s, \"status\": \"%s\", \"message\": %s, \"nanos\": %d, "
+						+ "\"instructions\": %d, \"serial\": %s, \"checkpoints\": [",
+						(i > 0) ? "," : "", jsonString(r.rom), r.status.name().toLowerCase(Locale.ROOT),
+						(r.message == null) ? "null" : jsonString(r.message), r.nanos, r.instructions,
+						jsonString(r.serial));
+				for (int j = 0; j < r.checkpoints.size(); j++) {
+					Checkpoint c = r.checkpoints.get(j);
+					out.printf("%s{\"frame\": %d, \"screen\": \"%08x\", \"serial\": \"%08x\"}",
+							(j > 0) ? ", " : "", c.frame, c.screenCrc, c.serialCrc);
+				}
+				out.print("]}");
+			}
+			out.printf("%n  ]%n}%n");
+		}
+	}
+	
+	private static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (char c : s.toCharArray()) {
+			switch (c) {
+			case '"', '\\':
+				sb.append('\\').append(c);
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+				else sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+	
+	// JUnit's XML report layout, which CI servers know how to show: a
+	// mismatch is a failure, a ROM that couldn't run an error, and a new ROM
+	// is skipped
+	public static void writeJUnit(Path file, List<Result> results, long wallNanos) throws IOException {
+		int failures = 0, errors = 0, skipped = 0;
+		for (Result r : results) {
+			if (r.status == Status.FAIL) failures++;
+			if (r.status == Status.ERROR) errors++;
+			if (r.status == Status.NEW) skipped++;
+		}
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+			out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+			out.printf(Locale.ROOT, "<testsuite name=\"RegressionFarm\" tests=\"%d\" failures=\"%d\" errors=\"%d\" "
+					+ "skipped=\"%d\" time=\"%.3f\">%n", results.size(), failures, errors, skipped, wallNanos / 1e9);
+			for (Result r : results) {
+				out.printf(Locale.ROOT, "  <testcase classname=\"RegressionFarm\" name=\"%s\" time=\"%.3f\">%n",
+						xml(r.rom), r.nanos / 1e9);
+				switch (r.status) {
+				case FAIL:
+					out.printf("    <failure message=\"%s\"/>%n", xml(r.message));
+					break;
+				case ERROR:
+					out.printf("    <error message=\"%s\"/>%n", xml(r.message));
+					break;
+				case NEW:
+					out.printf("    <skipped message=\"%s\"/>%n", xml(r.message));
+					break;
+				default:
+					break;
+				}
+				if (!r.serial.isEmpty()) out.printf("    <system-out>%s</system-out>%n", xml(r.serial));
+				out.println("  </testcase>");
+			}
+			out.println("</testsuite>");
+		}
+	}
+	
+	private static String xml(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+	
+	public static void main(String [] args) throws IOException {
+		Path dir = Paths.get(".");
+		int frames = 600;
+		int every = 60;
+		Path manifest = null;
+		boolean update = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		Path junit = null;
+		Path json = null;
+		
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-frames") && i + 1 < args.length) {
+				frames = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-every") && i + 1 < args.length) {
+				every = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-golden") && i + 1 < args.length) {
+				manifest = Paths.get(args[++i]);
+			} else if (args[i].equals("-update")) {
+				update = true;
+			} else if (args[i].equals("-threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-junit") && i + 1 < args.length) {
+				junit = Paths.get(args[++i]);
+			} else if (args[i].equals("-json") && i + 1 < args.length) {
+				json = Paths.get(args[++i]);
+			} else {
+				dir = Paths.get(args[i]);
+			}
+		}
+		if (manifest == null) manifest = dir.resolve(MANIFEST_NAME);
+		
+		List<Path> roms;
+		try (Stream<Path> files = Files.list(dir)) {
+			roms = files.filter(p -> {
+				String name = p.getFileName().toString().toLowerCase(Locale.ROOT);
+				return name.endsWith(".gb") || name.endsWith(".gbc");
+			}).sorted().collect(Collectors.toList());
+		}
+		
+		List<Result> results;
+		long start = System.nanoTime();
+		try (RegressionFarm farm = new RegressionFarm(frames, every, threads)) {
+			results = farm.run(roms);
+		}
+		long wallNanos = System.nanoTime() - start;
+		
+		Map<String, List<Checkpoint>> golden;
+		if (update) {
+			golden = new TreeMap<>();
+			for (Result r : results) {
+				if (r.status != Status.ERROR) golden.put(r.rom, r.checkpoints);
+			}
+			writeManifest(manifest, golden);
+		} else {
+			golden = readManifest(manifest);
+			for (String rom : golden.keySet()) {
+				if (Files.exists(dir.resolve(rom))) continue;
+				Result r = new Result(rom);
+				r.status = Status.ERROR;
+				r.message = "in the manifest but not in " + dir;
+				results.add(r);
+			}
+		}
+		
+		// CPU time rather than wall time, so ROMs that shared a core with
+		// others don't look slower than they ran
+		long busyNanos = 0;
+		int passed = 0, failed = 0;
+		for (Result r : results) {
+			r.check(golden.get(r.rom));
+			busyNanos += r.cpuNanos;
+			if (r.status == Status.PASS) passed++;
+			if (r.status == Status.FAIL || r.status == Status.ERROR) failed++;
+			System.out.printf("%-5s %s (%d checkpoints, %.1f ms)%s%n", r.status, r.rom, r.checkpoints.size(),
+					r.cpuNanos / 1e6, (r.message == null) ? "" : ": " + r.message);
+		}
+		System.out.printf("%d ROMs, %d passed, %d failed, %d new: %.1f ms on %d threads "
+				+ "(%.1f ms of emulation, %.1fx)%n", results.size(), passed, failed,
+				results.size() - passed - failed, wallNanos / 1e6, threads, busyNanos / 1e6,
+				(double) busyNanos / Math.max(1, wallNanos));
+		
+		if (update) System.out.println("Wrote " + manifest);
+		if (json != null) writeJson(json, results, wallNanos, threads);
+		if (junit != null) writeJUnit(junit, results, wallNanos);
+		if (failed > 0) System.exit(1);
+	}
+}
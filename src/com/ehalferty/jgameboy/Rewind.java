@@ -0,0 +1,284 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.Arrays;
+
+// Frame-by-frame history for rewinding. A snapshot is taken after every
+// frame, but only every keyframeInterval-th one is kept whole. The rest
+// are stored as the XOR of the snapshot against that keyframe, and since
+// little of the machine changes in a few frames that is mostly zeros,
+// which run-length coding squeezes down to a few hundred bytes.
+//
+// Entries live in one fixed arena, oldest first, wrapping round like a
+// ring. When a new entry doesn't fit, or there are already maxFrames of
+// them, the oldest are thrown away, along with any deltas whose keyframe
+// went with them. So memory never grows past what was given up front.
+//
+// Encoding: a sequence of (unchanged run, changed run, changed bytes),
+// with the run lengths as base-128 varints. Changed bytes are stored
+// XORed with the keyframe. A keyframe is encoded the same way against
+// all zeros.
+public class Rewind {
+	
+	// A run of fewer unchanged bytes than this is cheaper kept in the
+	// literal than split into a new (unchanged, changed) pair
+	private static final int MIN_RUN = 4;
+	
+	private final byte [] arena;
+	private final int keyframeInterval;
+	
+	// Entry metadata, a ring of maxFrames indexed from the oldest
+	private final int [] offset;
+	private final int [] length;
+	private final boolean [] keyframe;
+	private int oldest = 0;
+	private int count = 0;
+	private int writePos = 0;
+	private int bytesUsed = 0;
+	
+	// The newest entry's keyframe, decoded, and how many entries since it
+	private byte [] key = new byte[0];
+	private byte [] zeros = new byte[0];
+	private byte [] scratch = new byte[0];
+	private int sinceKey = 0;
+	
+	private final SaveState state = new SaveState();
+	
+	// Statistics
+	private long captures = 0;
+	private long captureNanos = 0;
+	private long captureMaxNanos = 0;
+	private long lastCaptureNanos = 0;
+	private long encodedTotal = 0;
+	private long rawTotal = 0;
+	
+	// Keep at most maxFrames frames in at most capacity bytes
+	public Rewind(int capacity, int maxFrames, int keyframeInterval) {
+		arena = new byte[capacity];
+		offset = new int[maxFrames];
+		length = new int[maxFrames];
+		keyframe = new boolean[maxFrames];
+		this.keyframeInterval = keyframeInterval;
+	}
+	
+	// Add the machine's current state as the newest frame
+	public void capture(Emulator emu) {
+		long start = System.nanoTime();
+		emu.snapshot(state);
+		byte [] cur = state.array();
+		int size = state.size();
+		if (size != key.length) {
+			// A different machine: nothing already stored can be reached
+			clear();
+			key = new byte[size];
+			zeros = new byte[size];
+			scratch = new byte[2 * size + 16];
+		}
+		
+		boolean isKey = count == 0 || sinceKey >= keyframeInterval;
+		int len = encode(cur, isKey ? zeros : key, size);
+		makeRoom(len);
+		if (count == 0 && !isKey) {
+			// Making room evicted this delta's keyframe: start a new one
+			isKey = true;
+			len = encode(cur, zeros, size);
+			makeRoom(len);
+		}
+		if (len > arena.length || count == offset.length) {
+			// Too big for the arena at all (or no entries allowed)
+			clear();
+		} else {
+			int at = (oldest + count) % offset.length;
+			System.arraycopy(scratch, 0, arena, writePos, len);
+			offset[at] = writePos;
+			length[at] = len;
+			keyframe[at] = isKey;
+			count++;
+			writePos += len;
+			bytesUsed += len;
+			if (isKey) {
+				System.arraycopy(cur, 0, key, 0, size);
+				sinceKey = 1;
+			} else {
+				sinceKey++;
+			}
+			encodedTotal += len;
+			rawTotal += size;
+		}
+		
+		long nanos = System.nanoTime() - start;
+		captures++;
+		captureNanos += nanos;
+		lastCaptureNanos = nanos;
+		if (nanos > captureMaxNanos) captureMaxNanos = nanos;
+	}
+	
+	// Go back to the newest frame and forget it, so that calling this
+	// repeatedly steps back a frame at a time. Returns false when there
+	// is no history left.
+	public boolean rewind(Emulator emu) {
+		if (count == 0) return false;
+		int newest = (oldest + count - 1) % offset.length;
+		byte [] out = state.reserve(key.length);
+		if (keyframe[newest]) {
+			decode(newest, zeros, out);
+		} else {
+			decode(newest, key, out);
+		}
+		emu.restore(state);
+		
+		count--;
+		bytesUsed -= length[newest];
+		writePos = count == 0 ? 0 : offset[newest];
+		if (keyframe[newest]) {
+			// Step back to the previous group's keyframe
+			findKey();
+		} else {
+			sinceKey--;
+		}
+		return true;
+	}
+	
+	public void clear() {
+		oldest = count = writePos = bytesUsed = sinceKey = 0;
+	}
+	
+	// Find the newest entry's keyframe and decode it into key
+	private void findKey() {
+		sinceKey = 0;
+		for (int i = count - 1; i >= 0; i--) {
+			int at = (oldest + i) % offset.length;
+			sinceKey++;
+			if (keyframe[at]) {
+				decode(at, zeros, key);
+				return;
+			}
+		}
+	}
+	
+	// Evict the oldest entries until len bytes fit at the write position
+	// and there is a free entry
+	private void makeRoom(int len) {
+		if (count == offset.length) evictGroup();
+		if (writePos + len > arena.length) {
+			// Wrap round, dropping whatever sits past the write position
+			while (count > 0 && offset[oldest] >= writePos) evictGroup();
+			writePos = 0;
+		}
+		while (count > 0 && offset[oldest] >= writePos && offset[oldest] < writePos + len) {
+			evictGroup();
+		}
+	}
+	
+	// Drop the oldest entry, then any deltas left without their keyframe.
+	// The newest keyframe only goes once everything else has.
+	private void evictGroup() {
+		do {
+			bytesUsed -= length[oldest];
+			oldest = (oldest + 1) % offset.length;
+			count--;
+		} while (count > 0 && !keyframe[oldest]);
+		if (count == 0) writePos = 0;
+	}
+	
+	// XOR-and-run-length encode cur against ref into scratch, returning
+	// the length. Unchanged runs are found with Arrays.mismatch, which
+	// compares many bytes at a time.
+	private int encode(byte [] cur, byte [] ref, int size) {
+		byte [] out = scratch;
+		int o = 0;
+		int i = 0;
+		while (i < size) {
+			int same = Arrays.mismatch(cur, i, size, ref, i, size);
+			if (same < 0) same = size - i;
+			int start = i + same;
+			
+			// Changed bytes run on until MIN_RUN unchanged ones in a row
+			int end = start;
+			int run = 0;
+			while (end < size && run < MIN_RUN) {
+				run = cur[end] == ref[end] ? run + 1 : 0;
+				end++;
+			}
+			if (run >= MIN_RUN) end -= run;
+			
+			o = putVarint(out, o, same);
+			o = putVarint(out, o, end - start);
+			for (int k = start; k < end; k++) {
+				out[o++] = (byte) (cur[k] ^ ref[k]);
+			}
+			i = end;
+		}
+		return o;
+	}
+	
+	private void decode(int entry, byte [] ref, byte [] out) {
+		int size = ref.length;
+		System.arraycopy(ref, 0, out, 0, size);
+		int p = offset[entry];
+		int end = p + length[entry];
+		int i = 0;
+		while (p < end) {
+			int same = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = arena[p++];
+				same |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			int changed = 0;
+			shift = 0;
+			do {
+				b = arena[p++];
+				changed |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			i += same;
+			for (int k = 0; k < changed; k++, i++) {
+				out[i] ^= arena[p++];
+			}
+		}
+	}
+	
+	private static int putVarint(byte [] out, int o, int value) {
+		while (value >= 0x80) {
+			out[o++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		out[o++] = (byte) value;
+		return o;
+	}
+	
+	// Frames that can be stepped back through, and the time they cover
+	public int getFrames() { return count; }
+	public double getSeconds() { return count * (double) Emulator.CYCLES_PER_FRAME / Scheduler.CLOCK_HZ; }
+	
+	public int getBytesUsed() { return bytesUsed; }
+	public int getCapacity() { return arena.length; }
+	
+	// Raw snapshot bytes per stored byte, over every capture so far
+	public double getCompressionRatio() { return encodedTotal > 0 ? (double) rawTotal / encodedTotal : 0; }
+	
+	public long getCaptures() { return captures; }
+	public double getCaptureMeanNanos() { return captures > 0 ? (double) captureNanos / captures : 0; }
+	public long getCaptureMaxNanos() { return captureMaxNanos; }
+	public long getLastCaptureNanos() { return lastCaptureNanos; }
+}
@@ -0,0 +1,69 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+// Keeps the last N trace records in a flat int array. Nothing is formatted
+// until dump() is called, so it is cheap enough to leave on while playing
+// and inspect after a crash.
+public class RingTraceSink implements TraceSink {
+	
+	private static final int FIELDS = 7;
+	
+	private final int [] records;
+	private final int capacity;
+	private long count = 0;
+	
+	public RingTraceSink(int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+		this.capacity = capacity;
+		records = new int[capacity * FIELDS];
+	}
+	
+	@Override
+	public void trace(int pc, int sp, int instr, int af, int bc, int de, int hl) {
+		int i = (int) (count % capacity) * FIELDS;
+		records[i] = pc;
+		records[i + 1] = sp;
+		records[i + 2] = instr;
+		records[i + 3] = af;
+		records[i + 4] = bc;
+		records[i + 5] = de;
+		records[i + 6] = hl;
+		count++;
+	}
+	
+	// Total number of instructions seen, including ones that were overwritten
+	public long getCount() { return count; }
+	
+	// Number of records currently held
+	public int size() { return (int) Math.min(count, capacity); }
+	
+	// Replay the held records, oldest first, into another sink
+	public void dump(TraceSink out) {
+		int n = size();
+		long first = count - n;
+		for (int k = 0; k < n; k++) {
+			int i = (int) ((first + k) % capacity) * FIELDS;
+			out.trace(records[i], records[i + 1], records[i + 2], records[i + 3],
+					records[i + 4], records[i + 5], records[i + 6]);
+		}
+	}
+	
+	public void clear() { count = 0; }
+}
@@ -0,0 +1,100 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// A snapshot of the whole emulator in a compact binary form:
+//
+//   "JGBS" magic, u16 version, u16 ROM banks, u8 cartridge type,
+//   then CPU, memory, MBC, scheduler, PPU, APU, joypad and counters, in that
+//   order.
+//
+// The buffer is kept between snapshots, so taking one repeatedly (for
+// rewind or rollback) only copies memory and never allocates.
+public class SaveState {
+	
+	public static final int MAGIC = 0x4A474253;
+	public static final int VERSION = 3;
+	private static final int HEADER_SIZE = 6;
+	
+	private ByteBuffer buf = ByteBuffer.allocate(0);
+	
+	// Start writing a state of at most the given size, past the header
+	ByteBuffer begin(int size) {
+		if (buf.capacity() < HEADER_SIZE + size) buf = ByteBuffer.allocate(HEADER_SIZE + size);
+		buf.clear();
+		buf.putInt(MAGIC).putShort((short) VERSION);
+		return buf;
+	}
+	
+	void finish() { buf.flip(); }
+	
+	// Start reading, past the header
+	ByteBuffer open() {
+		buf.rewind();
+		if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+			throw new IllegalArgumentException("Not a jGameboy save state");
+		}
+		int version = buf.getShort() & 0xFFFF;
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported save state version " + version);
+		}
+		return buf;
+	}
+	
+	// Bytes used by the current snapshot
+	public int size() { return buf.limit(); }
+	
+	// The snapshot's bytes, in place: the first size() of them are valid
+	byte [] array() { return buf.array(); }
+	
+	// Make room for a snapshot of exactly the given size, to be filled in
+	// place through the returned array
+	byte [] reserve(int size) {
+		if (buf.capacity() < size) buf = ByteBuffer.allocate(size);
+		buf.clear().limit(size);
+		return buf.array();
+	}
+	
+	public byte [] toByteArray() {
+		byte [] out = new byte[buf.limit()];
+		buf.get(0, out);
+		return out;
+	}
+	
+	public void setBytes(byte [] bytes) {
+		if (buf.capacity() < bytes.length) buf = ByteBuffer.allocate(bytes.length);
+		buf.clear();
+		buf.put(bytes).flip();
+	}
+	
+	public void writeTo(Path file) throws IOException {
+		Files.write(file, toByteArray());
+	}
+	
+	public static SaveState readFrom(Path file) throws IOException {
+		SaveState state = new SaveState();
+		state.setBytes(Files.readAllBytes(file));
+		return state;
+	}
+}
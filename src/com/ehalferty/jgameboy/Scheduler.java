@@ -0,0 +1,120 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.nio.ByteBuffer;
+
+// Keeps the master clock and a small fixed table of pending hardware events.
+// The CPU loop only compares the clock against the earliest due time, so
+// timers and video cost nothing between their events.
+public class Scheduler {
+	
+	// The GameBoy's master clock, 4.194304 MHz
+	public static final int CLOCK_HZ = 4194304;
+	
+	// Event slots
+	public static final int EVENT_DIV = 0;
+	public static final int EVENT_TIMA = 1;
+	public static final int EVENT_PPU = 2;
+	public static final int EVENT_APU = 3;
+	public static final int EVENT_COUNT = 4;
+	
+	public static final long NEVER = Long.MAX_VALUE;
+	
+	// Called when an event comes due, with the cycle it was due at (which may
+	// be slightly in the past). Handlers reschedule themselves if periodic.
+	public interface Handler {
+		void onEvent(long due);
+	}
+	
+	private final long [] due = new long[EVENT_COUNT];
+	private final Handler [] handlers = new Handler[EVENT_COUNT];
+	private long now = 0;
+	private long next = NEVER;
+	
+	public Scheduler() {
+		for (int i = 0; i < EVENT_COUNT; i++) due[i] = NEVER;
+	}
+	
+	public void setHandler(int event, Handler handler) { handlers[event] = handler; }
+	
+	// Moving the earliest event later means finding the new earliest
+	public void schedule(int event, long at) {
+		long was = due[event];
+		due[event] = at;
+		if (at < next) {
+			next = at;
+		} else if (was == next) {
+			recomputeNext();
+		}
+	}
+	
+	public void cancel(int event) {
+		if (due[event] == NEVER) return;
+		due[event] = NEVER;
+		recomputeNext();
+	}
+	
+	public boolean isScheduled(int event) { return due[event] != NEVER; }
+	public long getDue(int event) { return due[event]; }
+	
+	// Move the clock forward and fire whatever came due
+	public void advance(int cycles) {
+		now += cycles;
+		if (now >= next) runDue();
+	}
+	
+	private void runDue() {
+		while (next <= now) {
+			int event = 0;
+			for (int i = 1; i < EVENT_COUNT; i++) {
+				if (due[i] < due[event]) event = i;
+			}
+			long at = due[event];
+			if (at > now) break;
+			due[event] = NEVER;
+			recomputeNext();
+			handlers[event].onEvent(at);
+		}
+	}
+	
+	private void recomputeNext() {
+		long n = NEVER;
+		for (int i = 0; i < EVENT_COUNT; i++) {
+			if (due[i] < n) n = due[i];
+		}
+		next = n;
+	}
+	
+	// Save state: the clock and every pending event. Handlers are wired up by
+	// the components themselves and are not saved.
+	void saveState(ByteBuffer buf) {
+		buf.putLong(now);
+		for (int i = 0; i < EVENT_COUNT; i++) buf.putLong(due[i]);
+	}
+	
+	void loadState(ByteBuffer buf) {
+		now = buf.getLong();
+		for (int i = 0; i < EVENT_COUNT; i++) due[i] = buf.getLong();
+		recomputeNext();
+	}
+	
+	public long getNow() { return now; }
+	public long getNextEventTime() { return next; }
+}
@@ -0,0 +1,87 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// The serial port: SB (0xFF01) holds the byte to send and SC (0xFF02)
+// starts a transfer. Nothing is ever plugged into the link cable, so a
+// transfer on the internal clock shifts the byte out, shifts in 0xFF and
+// raises the serial interrupt. It finishes at once instead of 4096 cycles
+// later; only a program counting cycles while it waits could tell.
+//
+// Every byte sent is kept, since test ROMs print their results this way.
+// The output is a record of what left the machine, so save states don't
+// hold it and rewinding doesn't take it back.
+public class Serial implements IoHandler {
+	
+	public static final int SB = 0xFF01;
+	public static final int SC = 0xFF02;
+	
+	private static final int TRANSFER = 0x80;
+	private static final int INTERNAL_CLOCK = 0x01;
+	
+	// Bytes kept; anything sent after that is only counted
+	static final int OUTPUT_LIMIT = 1 << 16;
+	
+	private final MMU mmu;
+	private final Interrupts interrupts;
+	
+	private byte [] output = new byte[256];
+	private long sent = 0;
+	
+	public Serial(MMU mmu, Interrupts interrupts) {
+		this.mmu = mmu;
+		this.interrupts = interrupts;
+		mmu.setIoHandler(SC, this);
+	}
+	
+	@Override
+	public void ioWrite(int addr, int value) {
+		if ((value & (TRANSFER | INTERNAL_CLOCK)) != (TRANSFER | INTERNAL_CLOCK)) return;
+		send((byte) mmu.readByte(SB));
+		mmu.setIoRegister(SB, 0xFF);
+		mmu.setIoRegister(SC, value & ~TRANSFER);
+		interrupts.request(Interrupts.SERIAL);
+	}
+	
+	private void send(byte b) {
+		if (sent < OUTPUT_LIMIT) {
+			if (sent == output.length) output = Arrays.copyOf(output, output.length * 2);
+			output[(int) sent] = b;
+		}
+		sent++;
+	}
+	
+	// Everything sent since power on, up to OUTPUT_LIMIT bytes
+	public byte [] getOutput() {
+		return Arrays.copyOf(output, getOutputLength());
+	}
+	
+	public int getOutputLength() { return (int) Math.min(sent, OUTPUT_LIMIT); }
+	public long getBytesSent() { return sent; }
+	
+	// CRC-32 of what getOutput() returns, without copying it
+	public int getOutputCrc() {
+		CRC32 crc = new CRC32();
+		crc.update(output, 0, getOutputLength());
+		return (int) crc.getValue();
+	}
+}
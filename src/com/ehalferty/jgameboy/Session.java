@@ -0,0 +1,58 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+// One emulator instance in a SessionPool, with its own timing statistics.
+// A session is only ever run by one pool thread at a time.
+public class Session {
+	
+	private final String name;
+	private final Emulator emu = new Emulator();
+	
+	private long frames = 0;
+	private long busyNanos = 0;
+	private long maxFrameNanos = 0;
+	
+	public Session(String name, Cartridge cart) {
+		this.name = name;
+		emu.init(cart);
+	}
+	
+	// Run some frames, recording how long each one took
+	public void runFrames(int count) {
+		for (int i = 0; i < count && emu.getCPU().isRunning(); i++) {
+			long start = System.nanoTime();
+			emu.runFrames(1);
+			long elapsed = System.nanoTime() - start;
+			busyNanos += elapsed;
+			if (elapsed > maxFrameNanos) maxFrameNanos = elapsed;
+			frames++;
+		}
+	}
+	
+	public String getName() { return name; }
+	public Emulator getEmulator() { return emu; }
+	public long getFrames() { return frames; }
+	public long getBusyNanos() { return busyNanos; }
+	public long getMaxFrameNanos() { return maxFrameNanos; }
+	
+	public double getMeanFrameNanos() {
+		return (frames == 0) ? 0 : (double) busyNanos / frames;
+	}
+}
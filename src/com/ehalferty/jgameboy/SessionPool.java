@@ -0,0 +1,164 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+// Runs many independent sessions on a work-stealing pool. Each session is
+// advanced in slices of a few frames, and a session that has frames left
+// resubmits itself, so long and short sessions share the cores evenly.
+// Usage: SessionPool [rom] [sessions] [frames] [threads]
+public class SessionPool implements AutoCloseable {
+	
+	// Frames a session runs before going back on the queue
+	private static final int SLICE_FRAMES = 4;
+	
+	private final ForkJoinPool pool;
+	
+	public SessionPool(int threads) {
+		pool = new ForkJoinPool(threads);
+	}
+	
+	public SessionPool() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	// Run every session for the given number of frames and wait for them all
+	public Report run(List<Session> sessions, int frames) {
+		long start = System.nanoTime();
+		long startInstructions = 0;
+		for (Session s : sessions) startInstructions += s.getEmulator().getInstructions();
+		
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(sessions.size());
+		for (Session s : sessions) {
+			tasks.add(pool.submit(new Slice(null, s, frames)));
+		}
+		for (ForkJoinTask<?> t : tasks) t.join();
+		
+		long instructions = -startInstructions;
+		for (Session s : sessions) instructions += s.getEmulator().getInstructions();
+		return new Report(sessions, instructions, System.nanoTime() - start, pool.getParallelism());
+	}
+	
+	@Override
+	public void close() {
+		pool.shutdown();
+		try {
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	// Runs a slice of one session, then forks the rest of its frames as a
+	// new task. Completion propagates back up the chain without recursion.
+	private static class Slice extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 1L;
+		
+		private final Session session;
+		private final int remaining;
+		
+		Slice(CountedCompleter<?> parent, Session session, int remaining) {
+			super(parent);
+			this.session = session;
+			this.remaining = remaining;
+		}
+		
+		@Override
+		public void compute() {
+			int n = Math.min(SLICE_FRAMES, remaining);
+			session.runFrames(n);
+			if (remaining > n && session.getEmulator().getCPU().isRunning()) {
+				setPendingCount(1);
+				new Slice(this, session, remaining - n).fork();
+			}
+			tryComplete();
+		}
+	}
+	
+	// Totals for one run() call
+	public static class Report {
+		private final List<Session> sessions;
+		private final long instructions;
+		private final long wallNanos;
+		private final int threads;
+		
+		Report(List<Session> sessions, long instructions, long wallNanos, int threads) {
+			this.sessions = sessions;
+			this.instructions = instructions;
+			this.wallNanos = wallNanos;
+			this.threads = threads;
+		}
+		
+		public long getInstructions() { return instructions; }
+		public long getWallNanos() { return wallNanos; }
+		public double getInstructionsPerSecond() { return instructions * 1e9 / wallNanos; }
+		
+		// Mean and worst single-frame latency across all sessions
+		public double getMeanFrameNanos() {
+			long busy = 0, frames = 0;
+			for (Session s : sessions) {
+				busy += s.getBusyNanos();
+				frames += s.getFrames();
+			}
+			return (frames == 0) ? 0 : (double) busy / frames;
+		}
+		
+		public long getMaxFrameNanos() {
+			long max = 0;
+			for (Session s : sessions) max = Math.max(max, s.getMaxFrameNanos());
+			return max;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d sessions on %d threads: %d instructions in %.1f ms "
+					+ "(%.0f instructions/s), frame latency mean %.3f ms, max %.3f ms",
+					sessions.size(), threads, instructions, wallNanos / 1e6,
+					getInstructionsPerSecond(), getMeanFrameNanos() / 1e6, getMaxFrameNanos() / 1e6);
+		}
+	}
+	
+	public static void main(String [] args) throws IOException {
+		String ROMFileName = (args.length > 0) ? args[0] : "demo.gb";
+		int count = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+		int frames = (args.length > 2) ? Integer.parseInt(args[2]) : 60;
+		int threads = (args.length > 3) ? Integer.parseInt(args[3])
+				: Runtime.getRuntime().availableProcessors();
+		
+		// Sessions share the ROM bytes but each gets its own cartridge RAM
+		byte [] rom = Files.readAllBytes(Paths.get(ROMFileName));
+		List<Session> sessions = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			sessions.add(new Session(ROMFileName + "#" + i, new Cartridge(rom)));
+		}
+		
+		try (SessionPool pool = new SessionPool(threads)) {
+			System.out.println(pool.run(sessions, frames));
+		}
+	}
+}
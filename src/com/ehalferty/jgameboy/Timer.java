@@ -0,0 +1,88 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+// DIV (0xFF04) and TIMA/TMA/TAC (0xFF05-0xFF07). Both counters are driven
+// by scheduler events at their own rate rather than checked every step.
+public class Timer implements IoHandler {
+	
+	public static final int DIV = 0xFF04;
+	public static final int TIMA = 0xFF05;
+	public static final int TMA = 0xFF06;
+	public static final int TAC = 0xFF07;
+	
+	// DIV counts at 16384 Hz
+	private static final int DIV_PERIOD = 256;
+	
+	// TIMA periods in clock cycles for TAC input clock select 0-3
+	private static final int [] TIMA_PERIODS = { 1024, 16, 64, 256 };
+	
+	private final MMU mmu;
+	private final Scheduler scheduler;
+	private final Interrupts interrupts;
+	
+	public Timer(MMU mmu, Scheduler scheduler, Interrupts interrupts) {
+		this.mmu = mmu;
+		this.scheduler = scheduler;
+		this.interrupts = interrupts;
+		scheduler.setHandler(Scheduler.EVENT_DIV, this::tickDiv);
+		scheduler.setHandler(Scheduler.EVENT_TIMA, this::tickTima);
+		mmu.setIoHandler(DIV, this);
+		mmu.setIoHandler(TAC, this);
+		scheduler.schedule(Scheduler.EVENT_DIV, scheduler.getNow() + DIV_PERIOD);
+		restartTima();
+	}
+	
+	@Override
+	public void ioWrite(int addr, int value) {
+		if (addr == DIV) {
+			// Any write clears the divider and restarts its period
+			mmu.setIoRegister(DIV, 0);
+			scheduler.schedule(Scheduler.EVENT_DIV, scheduler.getNow() + DIV_PERIOD);
+		} else if (addr == TAC) {
+			restartTima();
+		}
+	}
+	
+	private void tickDiv(long due) {
+		mmu.setIoRegister(DIV, mmu.readByte(DIV) + 1);
+		scheduler.schedule(Scheduler.EVENT_DIV, due + DIV_PERIOD);
+	}
+	
+	private void tickTima(long due) {
+		int tima = (mmu.readByte(TIMA) & 0xFF) + 1;
+		if (tima > 0xFF) {
+			// Overflow reloads from TMA and requests the timer interrupt
+			tima = mmu.readByte(TMA);
+			interrupts.request(Interrupts.TIMER);
+		}
+		mmu.setIoRegister(TIMA, tima);
+		scheduler.schedule(Scheduler.EVENT_TIMA, due + period());
+	}
+	
+	private void restartTima() {
+		if ((mmu.readByte(TAC) & 0x04) != 0) {
+			scheduler.schedule(Scheduler.EVENT_TIMA, scheduler.getNow() + period());
+		} else {
+			scheduler.cancel(Scheduler.EVENT_TIMA);
+		}
+	}
+	
+	private int period() { return TIMA_PERIODS[mmu.readByte(TAC) & 0x03]; }
+}
@@ -0,0 +1,433 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Checks the emulator against a reference trace in the traced.csv layout
+// ("PC,SP,I,AF,BC,DE,HL" in decimal, one line per instruction from power
+// on), and reports the first line where they differ.
+//
+// The trace is memory mapped and parsed straight from the mapping, a digit
+// at a time, so a trace of millions of lines costs no Strings and no copy.
+// The emulator runs in lockstep with it through the trace hook, each
+// record checked as the instruction is about to run.
+//
+// With more than one thread the trace is split into chunks at line
+// boundaries, and each chunk is checked on its own from a save state of
+// the machine at its first line. The states come from one emulator
+// running ahead without checking anything, which is much cheaper than the
+// checking. The first divergence is the same one a single pass would find.
+//
+// Usage: TraceVerifier [rom] [trace.csv] [threads]
+public class TraceVerifier {
+	
+	private static final int FIELDS = 7;
+	static final String [] FIELD_NAMES = { "PC", "SP", "I", "AF", "BC", "DE", "HL" };
+	
+	// Lines of context shown either side of a divergence
+	public static final int CONTEXT = 5;
+	
+	// Chunks are mapped whole, so none may pass 2 GB; keep well under
+	private static final long MAX_CHUNK = 1L << 30;
+	
+	// Chunks per thread, so one slow chunk doesn't leave the others idle
+	private static final int CHUNKS_PER_THREAD = 4;
+	
+	// Where the emulator and the reference first disagree (or where one of
+	// them ran out), with the lines around it
+	public static class Divergence {
+		public final long line;
+		public final int [] expected;
+		public final int [] actual;
+		public final String reason;
+		final int [][] before;
+		final int [][] after;
+		
+		Divergence(long line, int [] expected, int [] actual, String reason, int [][] before, int [][] after) {
+			this.line = line;
+			this.expected = expected;
+			this.actual = actual;
+			this.reason = reason;
+			this.before = before;
+			this.after = after;
+		}
+		
+		public void print(PrintStream out) {
+			out.printf("First divergence at line %d: %s%n", line, reason);
+			if (expected != null && actual != null) {
+				out.printf("  %-3s %-14s %-14s%n", "", "expected", "actual");
+				for (int f = 0; f < FIELDS; f++) {
+					out.printf("  %-3s %-14s %-14s%s%n", FIELD_NAMES[f], field(f, expected[f]), field(f, actual[f]),
+							expected[f] != actual[f] ? "  <--" : "");
+				}
+				if (((expected[3] ^ actual[3]) & 0xFF) != 0) {
+					out.printf("  flags %s, was expected %s%n", flags(actual[3]), flags(expected[3]));
+				}
+			}
+			out.println("Context:");
+			for (int i = 0; i < before.length; i++) {
+				out.printf("  %10d  %s%n", line - before.length + i, record(before[i]));
+			}
+			if (expected != null) out.printf("> %10d  %s (reference)%n", line, record(expected));
+			if (actual != null) out.printf("> %10d  %s (emulator)%n", line, record(actual));
+			for (int i = 0; i < after.length; i++) {
+				out.printf("  %10d  %s (reference)%n", line + 1 + i, record(after[i]));
+			}
+		}
+		
+		private static String field(int f, int v) {
+			return (f == 2) ? String.format("%02X (%d)", v, v) : String.format("%04X (%d)", v, v);
+		}
+		
+		private static String flags(int af) {
+			return new String(new char[] {
+				(af & 0x80) != 0 ? 'Z' : '-', (af & 0x40) != 0 ? 'N' : '-',
+				(af & 0x20) != 0 ? 'H' : '-', (af & 0x10) != 0 ? 'C' : '-' });
+		}
+		
+		private static String record(int [] r) {
+			return String.format("PC=%04X SP=%04X I=%02X AF=%04X BC=%04X DE=%04X HL=%04X",
+					r[0], r[1], r[2], r[3], r[4], r[5], r[6]);
+		}
+	}
+	
+	public static class Result {
+		public final long lines;
+		public final Divergence divergence;
+		public final long nanos;
+		
+		Result(long lines, Divergence divergence, long nanos) {
+			this.lines = lines;
+			this.divergence = divergence;
+			this.nanos = nanos;
+		}
+		
+		public boolean matches() { return divergence == null; }
+	}
+	
+	// A stretch of the trace: its bytes and the line it starts on (from 1)
+	private static class Chunk {
+		final long offset;
+		final long size;
+		long firstLine;
+		long lines;
+		
+		Chunk(long offset, long size) {
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+	
+	private final byte [] rom;
+	
+	public TraceVerifier(byte [] rom) {
+		this.rom = rom;
+	}
+	
+	public Result verify(Path trace, int threads) throws IOException {
+		long start = System.nanoTime();
+		try (FileChannel ch = FileChannel.open(trace, StandardOpenOption.READ)) {
+			List<Chunk> chunks = split(ch, threads == 1 ? 1 : threads * CHUNKS_PER_THREAD);
+			ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "trace-verifier");
+				t.setDaemon(true);
+				return t;
+			});
+			try {
+				countLines(ch, chunks, pool);
+				long total = 0;
+				for (Chunk c : chunks) {
+					c.firstLine = total + 1;
+					total += c.lines;
+				}
+				Divergence d = (threads == 1) ? checkInOrder(ch, chunks) : checkInParallel(ch, chunks, pool);
+				return new Result(d == null ? total : d.line - 1, d, System.nanoTime() - start);
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+	}
+	
+	// Cut the file into about n chunks, each ending just after a newline
+	private static List<Chunk> split(FileChannel ch, int n) throws IOException {
+		long size = ch.size();
+		int count = (int) Math.max(n, (size + MAX_CHUNK - 1) / MAX_CHUNK);
+		List<Chunk> chunks = new ArrayList<>();
+		ByteBuffer probe = ByteBuffer.allocate(64);
+		long from = 0;
+		for (int k = 1; k <= count && from < size; k++) {
+			long to = (k == count) ? size : Math.max(from, size * k / count);
+			// Move the cut past the end of the line it falls in
+			while (to < size) {
+				probe.clear();
+				int got = ch.read(probe, to);
+				int nl = -1;
+				for (int i = 0; i < got && nl < 0; i++) {
+					if (probe.get(i) == '\n') nl = i;
+				}
+				if (nl >= 0) {
+					to += nl + 1;
+					break;
+				}
+				to += Math.max(got, 1);
+			}
+			to = Math.min(to, size);
+			if (to > from) chunks.add(new Chunk(from, to - from));
+			from = to;
+		}
+		return chunks;
+	}
+	
+	private static void countLines(FileChannel ch, List<Chunk> chunks, ExecutorService pool) throws IOException {
+		List<Future<?>> counts = new ArrayList<>();
+		for (Chunk c : chunks) {
+			ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, c.offset, c.size);
+			counts.add(pool.submit(() -> {
+				long lines = 0;
+				int n = buf.limit();
+				for (int i = 0; i < n; i++) {
+					if (buf.get(i) == '\n') lines++;
+				}
+				// A last line without a newline still counts
+				if (n > 0 && buf.get(n - 1) != '\n') lines++;
+				c.lines = lines;
+			}));
+		}
+		await(counts);
+	}
+	
+	// One emulator, one chunk after another
+	private Divergence checkInOrder(FileChannel ch, List<Chunk> chunks) throws IOException {
+		Emulator emu = newEmulator();
+		Checker checker = new Checker(emu, new AtomicLong(Long.MAX_VALUE));
+		for (Chunk c : chunks) {
+			Divergence d = checker.check(ch.map(FileChannel.MapMode.READ_ONLY, c.offset, c.size), c.firstLine, c.lines);
+			if (d != null) return d;
+		}
+		return null;
+	}
+	
+	// Run ahead taking a state at the start of each chunk, and check each
+	// chunk from its state on the pool as soon as it is taken
+	private Divergence checkInParallel(FileChannel ch, List<Chunk> chunks, ExecutorService pool) throws IOException {
+		AtomicLong first = new AtomicLong(Long.MAX_VALUE);
+		List<Future<Divergence>> results = new ArrayList<>();
+		
+		Emulator ahead = newEmulator();
+		long [] executed = { 0 };
+		ahead.setTraceSink((pc, sp, instr, af, bc, de, hl) -> executed[0]++);
+		for (int k = 0; k < chunks.size(); k++) {
+			Chunk c = chunks.get(k);
+			long target = c.firstLine - 1;
+			ahead.runUntil(e -> executed[0] >= target || c.firstLine > first.get());
+			if (c.firstLine > first.get()) break;
+			if (executed[0] < target) {
+				// The CPU stopped before reaching this chunk; the chunk
+				// before will say so
+				break;
+			}
+			SaveState state = ahead.snapshot();
+			ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, c.offset, c.size);
+			results.add(pool.submit(() -> {
+				Emulator emu = newEmulator();
+				emu.restore(state);
+				Divergence d = new Checker(emu, first).check(buf, c.firstLine, c.lines);
+				if (d != null) first.accumulateAndGet(d.line, Math::min);
+				return d;
+			}));
+		}
+		
+		Divergence earliest = null;
+		for (Future<Divergence> f : results) {
+			Divergence d = get(f);
+			if (d != null && (earliest == null || d.line < earliest.line)) earliest = d;
+		}
+		return earliest;
+	}
+	
+	private Emulator newEmulator() {
+		Emulator emu = new Emulator();
+		emu.init(rom);
+		return emu;
+	}
+	
+	// Compares each instruction the emulator is about to run with the next
+	// reference record, keeping the last few for context. Stops early once
+	// another chunk has found a divergence before this one's lines.
+	private static class Checker implements TraceSink {
+		
+		private final Emulator emu;
+		private final AtomicLong stopAfter;
+		
+		private ByteBuffer buf;
+		private int pos;
+		private long line;
+		private long endLine;
+		private long checked = 0;
+		
+		private final int [] expected = new int[FIELDS];
+		private final int [][] history = new int[CONTEXT][FIELDS];
+		private Divergence divergence;
+		
+		Checker(Emulator emu, AtomicLong stopAfter) {
+			this.emu = emu;
+			this.stopAfter = stopAfter;
+			emu.setTraceSink(this);
+		}
+		
+		// Check lines [firstLine, firstLine + lines) against the buffer
+		Divergence check(ByteBuffer buf, long firstLine, long lines) {
+			this.buf = buf;
+			pos = 0;
+			line = firstLine;
+			endLine = firstLine + lines;
+			emu.runUntil(e -> divergence != null || line >= endLine || line > stopAfter.get());
+			if (divergence == null && line < endLine && line <= stopAfter.get()) {
+				// runUntil only gives up early when the CPU stops
+				int [][] ahead = parseAhead(CONTEXT + 1);
+				divergence = new Divergence(line, ahead.length > 0 ? ahead[0] : null, null,
+						String.format("CPU stopped at PC=%04X with the reference still going", emu.getCPU().getPC()),
+						context(), ahead.length > 1 ? Arrays.copyOfRange(ahead, 1, ahead.length) : new int[0][]);
+			}
+			return divergence;
+		}
+		
+		@Override
+		public void trace(int pc, int sp, int instr, int af, int bc, int de, int hl) {
+			if (divergence != null || line >= endLine) return;
+			int next = parse(buf, pos, expected);
+			if (next < 0) {
+				divergence = new Divergence(line, null, new int[] { pc, sp, instr, af, bc, de, hl },
+						"the reference line isn't seven decimal numbers", context(), new int[0][]);
+				return;
+			}
+			if (expected[0] != pc || expected[1] != sp || expected[2] != instr || expected[3] != af
+					|| expected[4] != bc || expected[5] != de || expected[6] != hl) {
+				pos = next;
+				divergence = new Divergence(line, expected.clone(), new int[] { pc, sp, instr, af, bc, de, hl },
+						"registers differ", context(), parseAhead(CONTEXT));
+				return;
+			}
+			pos = next;
+			System.arraycopy(expected, 0, history[(int) (checked % CONTEXT)], 0, FIELDS);
+			checked++;
+			line++;
+		}
+		
+		// The matching lines just before the current one, oldest first
+		private int [][] context() {
+			int n = (int) Math.min(CONTEXT, checked);
+			int [][] out = new int[n][];
+			for (int i = 0; i < n; i++) {
+				out[i] = history[(int) ((checked - n + i) % CONTEXT)].clone();
+			}
+			return out;
+		}
+		
+		// Up to n reference records from the read position, without moving it
+		private int [][] parseAhead(int n) {
+			List<int []> out = new ArrayList<>();
+			int p = pos;
+			for (int i = 0; i < n && p >= 0 && p < buf.limit(); i++) {
+				int [] r = new int[FIELDS];
+				p = parse(buf, p, r);
+				if (p >= 0) out.add(r);
+			}
+			return out.toArray(new int[0][]);
+		}
+	}
+	
+	// Parse the record at pos into rec, returning where the next one
+	// starts, or -1 if the line isn't seven decimal numbers
+	static int parse(ByteBuffer buf, int pos, int [] rec) {
+		int end = buf.limit();
+		for (int f = 0; f < FIELDS; f++) {
+			int v = 0;
+			int digits = 0;
+			int b;
+			while (pos < end && (b = buf.get(pos) - '0') >= 0 && b <= 9) {
+				v = v * 10 + b;
+				digits++;
+				pos++;
+			}
+			if (digits == 0 || digits > 5) return -1;
+			rec[f] = v;
+			int sep = (pos < end) ? buf.get(pos) : '\n';
+			if (f < FIELDS - 1) {
+				if (sep != ',') return -1;
+			} else if (sep == '\r') {
+				pos++;
+				sep = (pos < end) ? buf.get(pos) : '\n';
+				if (sep != '\n') return -1;
+			} else if (sep != '\n') {
+				return -1;
+			}
+			pos++;
+		}
+		return pos;
+	}
+	
+	private static void await(List<Future<?>> futures) throws IOException {
+		for (Future<?> f : futures) get(f);
+	}
+	
+	private static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	public static void main(String [] args) throws IOException {
+		String ROMFileName = (args.length > 0) ? args[0] : "demo.gb";
+		String traceFileName = (args.length > 1) ? args[1] : "traced.csv";
+		int threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		
+		TraceVerifier verifier = new TraceVerifier(Files.readAllBytes(Paths.get(ROMFileName)));
+		Result result = verifier.verify(Paths.get(traceFileName), threads);
+		System.out.printf("%s against %s: %d lines match in %.1f ms (%.0f lines/s, %d threads)%n",
+				ROMFileName, traceFileName, result.lines, result.nanos / 1e6,
+				result.lines * 1e9 / Math.max(1, result.nanos), threads);
+		if (!result.matches()) {
+			result.divergence.print(System.out);
+			System.exit(1);
+		}
+	}
+}
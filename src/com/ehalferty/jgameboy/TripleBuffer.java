@@ -0,0 +1,98 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hands finished frames from one producer (the emulation thread) to one
+// consumer (the render thread) without either ever waiting. There are three
+// buffers: the producer fills the back one, the consumer shows the front
+// one, and the third sits in the middle holding the newest finished frame.
+// Publishing swaps the back buffer into the middle and acquiring swaps the
+// middle out to the front, each with a single atomic exchange, so a slow
+// consumer only ever costs frames (the newest one always wins), never time.
+public class TripleBuffer {
+	
+	// The shared word: which buffer is in the middle, and whether it holds a
+	// frame the consumer hasn't taken yet
+	private static final int INDEX = 0x3;
+	private static final int FRESH = 0x4;
+	
+	private final byte [][] buffers;
+	
+	// When each buffer was published, for the handoff latency. Written
+	// before the exchange that passes the buffer on, so the consumer sees it.
+	private final long [] publishedAt = new long[3];
+	
+	private final AtomicInteger middle = new AtomicInteger(1);
+	private int back = 0;   // owned by the producer
+	private int front = 2;  // owned by the consumer
+	
+	// Counters, each written by one side only
+	private volatile long published = 0;
+	private volatile long dropped = 0;
+	private volatile long acquired = 0;
+	private volatile long latencyTotal = 0;
+	private volatile long latencyMax = 0;
+	
+	public TripleBuffer(int size) {
+		buffers = new byte[3][size];
+	}
+	
+	// Producer: the buffer to fill with the next frame
+	public byte [] getBackBuffer() { return buffers[back]; }
+	
+	// Producer: hand over the back buffer and take a fresh one to fill.
+	// Returns false if this replaced a frame that was never acquired.
+	public boolean publish() {
+		publishedAt[back] = System.nanoTime();
+		int old = middle.getAndSet(back | FRESH);
+		back = old & INDEX;
+		published++;
+		if ((old & FRESH) != 0) {
+			dropped++;
+			return false;
+		}
+		return true;
+	}
+	
+	// Consumer: the newest frame, or null if none has been published since
+	// the last call. The frame stays valid until the next call that returns
+	// one.
+	public byte [] acquire() {
+		if ((middle.get() & FRESH) == 0) return null;
+		int old = middle.getAndSet(front);
+		front = old & INDEX;
+		long latency = System.nanoTime() - publishedAt[front];
+		acquired++;
+		latencyTotal += latency;
+		if (latency > latencyMax) latencyMax = latency;
+		return buffers[front];
+	}
+	
+	// Whether a frame is waiting to be acquired, as seen from either side
+	public boolean hasFrame() { return (middle.get() & FRESH) != 0; }
+	
+	// Totals since the buffer was made; take differences for rates
+	public long getPublished() { return published; }
+	public long getDropped() { return dropped; }
+	public long getAcquired() { return acquired; }
+	public long getLatencyTotalNanos() { return latencyTotal; }
+	public long getLatencyMaxNanos() { return latencyMax; }
+}
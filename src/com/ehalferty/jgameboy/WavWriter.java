@@ -0,0 +1,79 @@
+/**
+* Copyright 2012 by Ed Halferty
+*
+* This file is part of jGameboy.
+*
+* jGameboy is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* jGameboy is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with jGameboy. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ehalferty.jgameboy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Writes 16-bit stereo samples from an AudioRing to a WAV file. There's no
+// thread: whoever runs the emulator calls drain() often enough (once a
+// frame, say) that the ring never fills, and every sample is kept.
+public class WavWriter implements Closeable {
+	
+	private static final int HEADER_SIZE = 44;
+	private static final int CHUNK = 4096;
+	
+	private final FileChannel file;
+	private final short [] samples = new short[CHUNK];
+	private final ByteBuffer bytes = ByteBuffer.allocate(CHUNK * 2).order(ByteOrder.LITTLE_ENDIAN);
+	private long dataBytes = 0;
+	
+	public WavWriter(Path path, int sampleRate) throws IOException {
+		file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put("RIFF".getBytes()).putInt(0).put("WAVE".getBytes());
+		header.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 2);
+		header.putInt(sampleRate).putInt(sampleRate * 4).putShort((short) 4).putShort((short) 16);
+		header.put("data".getBytes()).putInt(0);
+		header.flip();
+		file.write(header);
+	}
+	
+	// Write out everything waiting in the ring
+	public void drain(AudioRing ring) throws IOException {
+		int n;
+		while ((n = ring.read(samples, 0, CHUNK)) > 0) {
+			bytes.clear();
+			bytes.asShortBuffer().put(samples, 0, n);
+			bytes.limit(n * 2);
+			while (bytes.hasRemaining()) file.write(bytes);
+			dataBytes += n * 2;
+		}
+	}
+	
+	// Fill in the sizes now that they're known
+	@Override
+	public void close() throws IOException {
+		try {
+			ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			file.write(size.putInt(0, (int) (HEADER_SIZE - 8 + dataBytes)), 4);
+			file.write(size.clear().putInt(0, (int) dataBytes), HEADER_SIZE - 4);
+		} finally {
+			file.close();
+		}
+	}
+	
+	public long getSamplesWritten() { return dataBytes / 2; }
+}